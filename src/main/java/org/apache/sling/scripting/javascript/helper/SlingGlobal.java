@@ -25,6 +25,10 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Serializable;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
@@ -32,12 +36,16 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.scripting.SlingBindings;
 import org.apache.sling.api.scripting.SlingScriptHelper;
+import org.apache.sling.scripting.javascript.internal.LoadedScriptCache;
+import org.apache.sling.scripting.javascript.internal.ModuleResolutionCache;
 import org.apache.sling.scripting.javascript.internal.RhinoJavaScriptEngineFactory;
-import org.apache.sling.scripting.javascript.io.EspReader;
+import org.apache.sling.scripting.javascript.internal.ScriptDependencies;
+import org.apache.sling.scripting.javascript.io.EspTranspiler;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.IdFunctionCall;
 import org.mozilla.javascript.IdFunctionObject;
 import org.mozilla.javascript.Kit;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
@@ -58,8 +66,8 @@ import org.slf4j.LoggerFactory;
  * the other. Usually the script files are read as plain JavaScript files. If
  * the file extension happens to be <em>.esp</em> to indicate an ECMAScript
  * Server Page, the file is read through an
- * {@link org.apache.sling.scripting.javascript.io.EspReader}. Failure to read
- * one of the files throws an error.</dd>
+ * {@link org.apache.sling.scripting.javascript.io.EspTranspiler}. Failure to
+ * read one of the files throws an error.</dd>
  * </dl>
  */
 public class SlingGlobal implements Serializable, IdFunctionCall {
@@ -75,6 +83,9 @@ public class SlingGlobal implements Serializable, IdFunctionCall {
 
     private static final int LAST_SCOPE_FUNCTION_ID = 3;
 
+    /** key of the modules required in the current request */
+    private static final String REQUIRED_MODULES = SlingGlobal.class.getName() + ".requiredModules";
+
     /** default log */
     private static final Logger defaultLog = LoggerFactory.getLogger(SlingGlobal.class);
 
@@ -176,6 +187,21 @@ public class SlingGlobal implements Serializable, IdFunctionCall {
                 throw Context.reportRuntimeError("Script file " + scriptName + " not found");
             }
 
+            recordDependency(globalScope, currentScript, loadScript.getPath());
+
+            // reuse the script compiled by an earlier load of the same resource
+            LoadedScriptCache loadedScriptCache = LoadedScriptCache.get(globalScope);
+            if (loadedScriptCache != null) {
+                Script compiled;
+                try {
+                    compiled = loadedScriptCache.getScript(cx, loadScript, loadScript.getPath());
+                } catch (IOException ioe) {
+                    throw Context.reportRuntimeError("Script file " + scriptName + " cannot be read from");
+                }
+                compiled.exec(cx, globalScope);
+                continue;
+            }
+
             InputStream scriptStream = loadScript.adaptTo(InputStream.class);
             if (scriptStream == null) {
                 throw Context.reportRuntimeError("Script file " + scriptName + " cannot be read from");
@@ -187,7 +213,7 @@ public class SlingGlobal implements Serializable, IdFunctionCall {
 
                 // check whether we have to wrap the basic reader
                 if (scriptName.endsWith(RhinoJavaScriptEngineFactory.ESP_SCRIPT_EXTENSION)) {
-                    scriptReader = new EspReader(scriptReader);
+                    scriptReader = new EspTranspiler().transpilingReader(scriptReader);
                 }
 
                 // read the suff buffered for better performance
@@ -232,10 +258,7 @@ public class SlingGlobal implements Serializable, IdFunctionCall {
             if (moduleScope == null) {
                 throw Context.reportRuntimeError("Cannot resolve relative module name outside of a module scope.");
             }
-            absolutePath = (moduleScope.getModuleName() + "/" + modulePath).replaceAll("[^/]*/\\./", "");
-            while (absolutePath.matches("([^/]*/)?[^/]*/\\.\\./")) {
-                absolutePath = absolutePath.replaceAll("([^/]*/)?[^/]*/\\.\\./", "");
-            }
+            absolutePath = resolveModulePath(moduleScope.getModuleName(), modulePath);
         }
         absolutePath = absolutePath + ".js";
 
@@ -247,17 +270,78 @@ public class SlingGlobal implements Serializable, IdFunctionCall {
 
         Resource script = null;
         String scriptName = null;
-        for (String basepath : resrev.getSearchPath()) {
-            script = resrev.resolve(basepath + absolutePath);
-            if (script != null && !(script instanceof NonExistingResource)) {
-                scriptName = basepath + absolutePath;
-                break;
+        ModuleResolutionCache moduleResolutionCache = ModuleResolutionCache.get(thisObj);
+        if (moduleResolutionCache != null) {
+            script = moduleResolutionCache.resolve(resrev, absolutePath);
+            if (script != null) {
+                scriptName = script.getPath();
+            }
+        } else {
+            for (String basepath : resrev.getSearchPath()) {
+                script = resrev.resolve(basepath + absolutePath);
+                if (script != null && !(script instanceof NonExistingResource)) {
+                    scriptName = basepath + absolutePath;
+                    break;
+                }
             }
         }
-        if (script == null) {
+        if (scriptName == null) {
             throw Context.reportRuntimeError("Unable to resolve module " + absolutePath + " in search path");
         }
 
+        recordDependency(thisObj, sling.getScript().getScriptResource().getPath(), scriptName);
+
+        // modules already required in this request are not executed again
+        Map<String, ModuleScope> requiredModules = getRequiredModules(cx);
+        if (requiredModules != null) {
+            ModuleScope required = requiredModules.get(scriptName);
+            if (required != null) {
+                return required;
+            }
+        }
+
+        // each module is executed in its own scope
+        Scriptable prototype = (moduleScope != null) ? moduleScope.getPrototype() : thisObj;
+        ModuleScope scope = new ModuleScope(prototype, absolutePath.substring(0, absolutePath.length() - 3));
+        if (requiredModules == null) {
+            executeModule(cx, resrev, script, scriptName, scope);
+            return scope;
+        }
+
+        // register before executing to support cyclic requires
+        requiredModules.put(scriptName, scope);
+        boolean executed = false;
+        try {
+            executeModule(cx, resrev, script, scriptName, scope);
+            executed = true;
+            return scope;
+        } finally {
+            if (!executed) {
+                // a failed module is executed again when required again
+                requiredModules.remove(scriptName);
+            }
+        }
+    }
+
+    private void executeModule(
+            Context cx, ResourceResolver resrev, Resource script, String scriptName, ModuleScope scope) {
+        LoadedScriptCache loadedScriptCache = LoadedScriptCache.get(scope);
+        if (loadedScriptCache != null) {
+            Script compiled;
+            try {
+                compiled = loadedScriptCache.getScript(cx, script, scriptName);
+            } catch (IOException ioe) {
+                // try once again
+                try {
+                    compiled = loadedScriptCache.getScript(cx, resrev.resolve(scriptName), scriptName);
+                } catch (IOException ioe2) {
+                    throw Context.reportRuntimeError("Script file " + script.getPath() + " cannot be read");
+                }
+            }
+            compiled.exec(cx, scope);
+            return;
+        }
+
         InputStream scriptStream = script.adaptTo(InputStream.class);
         if (scriptStream == null) {
             // try once again
@@ -273,26 +357,15 @@ public class SlingGlobal implements Serializable, IdFunctionCall {
 
             // check whether we have to wrap the basic reader
             if (scriptName.endsWith(RhinoJavaScriptEngineFactory.ESP_SCRIPT_EXTENSION)) {
-                scriptReader = new EspReader(scriptReader);
+                scriptReader = new EspTranspiler().transpilingReader(scriptReader);
             }
 
             // read the suff buffered for better performance
             scriptReader = new BufferedReader(scriptReader);
 
-            // TODO: execute script with ModuleScope
             // now, let's go
-
-            ModuleScope scope = moduleScope;
-            if (scope == null) {
-                scope = new ModuleScope(thisObj, absolutePath.substring(0, absolutePath.length() - 3));
-            } else {
-                scope.reset();
-            }
-
             cx.evaluateReader(scope, scriptReader, scriptName, 1, null);
 
-            return scope;
-
         } catch (IOException ioe) {
 
             throw Context.reportRuntimeError("Failure reading file " + scriptName + ": " + ioe);
@@ -306,6 +379,96 @@ public class SlingGlobal implements Serializable, IdFunctionCall {
         }
     }
 
+    /**
+     * Records that the script loaded or required the dependency, such that
+     * the script is evicted from the caches when the dependency changes.
+     */
+    private void recordDependency(Scriptable scope, String script, String dependency) {
+        ScriptDependencies scriptDependencies = ScriptDependencies.get(scope);
+        if (scriptDependencies != null) {
+            scriptDependencies.record(script, dependency);
+        }
+    }
+
+    /**
+     * Resolves the relative module id against the directory of the module
+     * requiring it. <code>.</code> segments are dropped and <code>..</code>
+     * segments remove the preceding segment, never going above the first
+     * segment of the module name.
+     */
+    static String resolveModulePath(String moduleName, String relativeId) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        int slash;
+        while ((slash = moduleName.indexOf('/', start)) >= 0) {
+            segments.add(moduleName.substring(start, slash));
+            start = slash + 1;
+        }
+        // the last segment of the module name is the module itself
+        int root = (moduleName.startsWith("/")) ? 1 : 0;
+
+        start = 0;
+        while (start <= relativeId.length()) {
+            slash = relativeId.indexOf('/', start);
+            if (slash < 0) {
+                slash = relativeId.length();
+            }
+            String segment = relativeId.substring(start, slash);
+            if ("..".equals(segment)) {
+                if (segments.size() > root) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else if (segment.length() > 0 && !".".equals(segment)) {
+                segments.add(segment);
+            }
+            start = slash + 1;
+        }
+
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            if (i > 0) {
+                path.append('/');
+            }
+            path.append(segments.get(i));
+        }
+        return path.toString();
+    }
+
+    /**
+     * Forgets the modules required during the top level script executions
+     * with the given scope, e.g. before the scope is reused for another
+     * execution.
+     */
+    public static void clearRequiredModules(ScriptableObject topCallScope) {
+        Object modules = topCallScope.getAssociatedValue(REQUIRED_MODULES);
+        if (modules instanceof Map) {
+            ((Map<?, ?>) modules).clear();
+        }
+    }
+
+    /**
+     * Returns the modules required during the current top level script
+     * execution by their script name or <code>null</code> if there is no
+     * top level call. The map is associated with the top level call scope
+     * and thus discarded at the end of the request.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, ModuleScope> getRequiredModules(Context cx) {
+        if (!ScriptRuntime.hasTopCall(cx)) {
+            return null;
+        }
+        Scriptable topCallScope = ScriptRuntime.getTopCallScope(cx);
+        if (!(topCallScope instanceof ScriptableObject)) {
+            return null;
+        }
+        ScriptableObject scope = (ScriptableObject) topCallScope;
+        Object modules = scope.getAssociatedValue(REQUIRED_MODULES);
+        if (modules == null) {
+            modules = scope.associateValue(REQUIRED_MODULES, new HashMap<String, ModuleScope>());
+        }
+        return (Map<String, ModuleScope>) modules;
+    }
+
     /**
      * Returns the script logger or the logger of this class as a fallback
      * default if the global log variable is not accessible.
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.CompiledScript;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>AnonymousScriptCache</code> keeps the most recently used scripts
+ * compiled without a script name, such as snippets passed to
+ * <code>ScriptEngine.eval(String)</code>. Since these scripts cannot be put
+ * into the <code>ScriptCache</code> (SLING-4935), they are identified by the
+ * hash of their source instead.
+ */
+class AnonymousScriptCache implements AnonymousScriptCacheMBean {
+
+    private final int maxSize;
+
+    private final Map<String, CompiledScript> scripts;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    AnonymousScriptCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.scripts = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the key identifying the given source.
+     */
+    static String key(String source, int optimizationLevel) {
+        return ContentHash.of(source, String.valueOf(optimizationLevel));
+    }
+
+    /**
+     * Returns the script cached for the key or <code>null</code> and counts
+     * the lookup as a hit or miss.
+     */
+    CompiledScript get(String key) {
+        final CompiledScript script;
+        synchronized (scripts) {
+            script = scripts.get(key);
+        }
+        (script != null ? hits : misses).incrementAndGet();
+        return script;
+    }
+
+    void put(String key, CompiledScript script) {
+        synchronized (scripts) {
+            scripts.put(key, script);
+        }
+    }
+
+    // ---------- AnonymousScriptCacheMBean
+
+    @Override
+    public int getSize() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+}
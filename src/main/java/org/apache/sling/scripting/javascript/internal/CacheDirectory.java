@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>CacheDirectory</code> class provides the housekeeping of the
+ * local directories in which the persistent caches store their entries.
+ * Failures are logged and otherwise ignored, as the entries are only ever
+ * used as a cache.
+ */
+final class CacheDirectory {
+
+    /** The name of the file recording the version of the entries */
+    static final String VERSION_FILE = "version";
+
+    private static final Logger log = LoggerFactory.getLogger(CacheDirectory.class);
+
+    private CacheDirectory() {}
+
+    /**
+     * Removes all entries from the directory unless they were written for
+     * the given version and records the version for the next call.
+     *
+     * @param directory the directory of the cache, which need not exist
+     * @param version the version of the entries to keep
+     * @param extension the file name extension of the entries
+     */
+    static void prepare(File directory, String version, String extension) {
+        final File marker = new File(directory, VERSION_FILE);
+        try {
+            if (marker.isFile()
+                    && version.equals(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8))) {
+                return;
+            }
+
+            int removed = 0;
+            for (File entry : entries(directory, extension)) {
+                if (entry.delete()) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                log.info("Removed {} entries of a previous version from {}", removed, directory);
+            }
+
+            if (directory.isDirectory() || directory.mkdirs()) {
+                Files.write(marker.toPath(), version.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException ioe) {
+            log.warn("Failed checking the version of the cache entries in " + directory, ioe);
+        }
+    }
+
+    /**
+     * Removes the least recently modified entries from the directory until
+     * their total size does not exceed the given maximum.
+     *
+     * @return the total size in bytes of the remaining entries
+     */
+    static long prune(File directory, String extension, long maxSize) {
+        File[] entries = entries(directory, extension);
+        long size = 0;
+        long[] lastModified = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            size += entries[i].length();
+            lastModified[i] = entries[i].lastModified();
+        }
+        if (size <= maxSize) {
+            return size;
+        }
+
+        // sort on the times read up front, which may change while sorting
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastModified[i]));
+
+        int removed = 0;
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            File entry = entries[order[i]];
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                removed++;
+            }
+        }
+        log.debug("Removed {} least recently used entries from {}", removed, directory);
+        return size;
+    }
+
+    private static File[] entries(File directory, String extension) {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(extension));
+        return entries != null ? entries : new File[0];
+    }
+}
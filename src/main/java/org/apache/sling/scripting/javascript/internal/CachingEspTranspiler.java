@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>CachingEspTranspiler</code> keeps the scripts generated for ESP
+ * templates, such that compiling a template again, e.g. after its compiled
+ * script has been evicted or with a different optimization level, does not
+ * translate the unchanged template again.
+ * <p>
+ * Entries are keyed by the hash of the template and the options of the
+ * transpiler, including the splitting of large scripts into functions. The
+ * generated scripts are kept in memory up to a maximum total number of
+ * characters, least recently used first out, and may additionally be stored
+ * in a local directory to survive restarts. Entries on disk are also keyed by
+ * the given version, which must change whenever the translation may change.
+ * Entries of another version are removed when the transpiler is created and
+ * the directory is limited to a maximum total size, removing the least
+ * recently used entries first. Failures reading or writing an entry on disk
+ * are treated as a cache miss.
+ */
+class CachingEspTranspiler extends SplittingEspTranspiler {
+
+    private static final String ENTRY_EXTENSION = ".js";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final long maxWeight;
+
+    private final File directory;
+
+    private final String version;
+
+    private final long maxDiskSize;
+
+    private final AtomicLong diskSize = new AtomicLong();
+
+    private final Map<String, String> scripts = new LinkedHashMap<String, String>(16, 0.75f, true);
+
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxWeight the maximum total number of characters of the scripts
+     *            kept in memory, 0 to not keep any
+     * @param directory the directory to store the scripts in or
+     *            <code>null</code> to only keep them in memory
+     * @param version the version of the translation used to key the entries
+     *            on disk
+     * @param maxDiskSize the maximum total size in bytes of the scripts
+     *            stored in the directory
+     * @param maxFunctionLength the length after which scripts are split into
+     *            functions, 0 to never split scripts
+     */
+    CachingEspTranspiler(long maxWeight, File directory, String version, long maxDiskSize, int maxFunctionLength) {
+        super(maxFunctionLength);
+        this.maxWeight = maxWeight;
+        this.directory = directory;
+        this.version = version;
+        this.maxDiskSize = maxDiskSize;
+        if (directory != null) {
+            CacheDirectory.prepare(directory, version, ENTRY_EXTENSION);
+            diskSize.set(CacheDirectory.prune(directory, ENTRY_EXTENSION, maxDiskSize));
+        }
+    }
+
+    @Override
+    public String transpile(Reader template) throws IOException {
+        final String source = IOUtils.toString(template);
+        final String key = ContentHash.of(
+                source,
+                getOutInitStatement(),
+                String.valueOf(isCoalesceText()),
+                String.valueOf(getMaxFunctionLength()),
+                version);
+
+        String script;
+        synchronized (scripts) {
+            script = scripts.get(key);
+        }
+        if (script == null && directory != null) {
+            script = load(new File(directory, key + ENTRY_EXTENSION));
+            if (script != null) {
+                put(key, script);
+            }
+        }
+        if (script != null) {
+            hits.incrementAndGet();
+            return script;
+        }
+
+        misses.incrementAndGet();
+        script = super.transpile(new StringReader(source));
+        if (directory != null) {
+            store(new File(directory, key + ENTRY_EXTENSION), script);
+        }
+        put(key, script);
+        return script;
+    }
+
+    int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    /**
+     * Returns the total number of characters of the scripts kept in memory.
+     */
+    long getWeight() {
+        synchronized (scripts) {
+            return weight;
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total size in bytes of the scripts stored in the directory.
+     */
+    long getDiskSize() {
+        return diskSize.get();
+    }
+
+    private void put(String key, String script) {
+        if (script.length() > maxWeight) {
+            return;
+        }
+        synchronized (scripts) {
+            final String previous = scripts.put(key, script);
+            if (previous != null) {
+                weight -= previous.length();
+            }
+            weight += script.length();
+
+            Iterator<String> eldest = scripts.values().iterator();
+            while (weight > maxWeight) {
+                weight -= eldest.next().length();
+                eldest.remove();
+            }
+        }
+    }
+
+    private String load(File entry) {
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            String script = new String(Files.readAllBytes(entry.toPath()), StandardCharsets.UTF_8);
+
+            // the modification time tells the least recently used entries
+            entry.setLastModified(System.currentTimeMillis());
+            return script;
+        } catch (IOException ioe) {
+            log.warn("Failed loading transpiled ESP script from " + entry + ", transpiling", ioe);
+            return null;
+        }
+    }
+
+    private void store(File entry, String script) {
+        File tmp = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                log.warn("Cannot create transpiled ESP script directory {}", directory);
+                return;
+            }
+
+            // write to a temporary file first such that concurrent readers
+            // never see a partially written entry
+            final byte[] bytes = script.getBytes(StandardCharsets.UTF_8);
+            tmp = File.createTempFile("esp", ".tmp", directory);
+            Files.write(tmp.toPath(), bytes);
+            Files.move(
+                    tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+
+            if (diskSize.addAndGet(bytes.length) > maxDiskSize) {
+                synchronized (diskSize) {
+                    if (diskSize.get() > maxDiskSize) {
+                        diskSize.set(CacheDirectory.prune(directory, ENTRY_EXTENSION, maxDiskSize));
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            log.warn("Failed storing transpiled ESP script in " + entry, ioe);
+        } finally {
+            if (tmp != null && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+}
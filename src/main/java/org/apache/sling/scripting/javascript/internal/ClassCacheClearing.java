@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.commons.classloader.DynamicClassLoader;
+import org.mozilla.javascript.ClassCache;
+import org.mozilla.javascript.Scriptable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>ClassCacheClearing</code> empties Rhino's class cache once per
+ * generation of the dynamic class loader. Requests still running with a
+ * dynamic class loader which is not live anymore, e.g. after a bundle
+ * update, would otherwise all clear the shared cache over and over again,
+ * throwing away the reflected Java members just rebuilt by the others. The
+ * cache is rebuilt lazily as scripts access Java classes again.
+ * <p>
+ * The stale class loaders already handled are only weakly referenced so as
+ * not to prevent them from being collected.
+ */
+class ClassCacheClearing implements ClassCacheClearingMBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Set<ClassLoader> staleClassLoaders =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ClassLoader, Boolean>()));
+
+    private final AtomicLong clears = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Clears the class cache of the scope if the class loader is a dynamic
+     * class loader which is not live anymore and the cache has not been
+     * cleared for it yet.
+     *
+     * @return <code>true</code> if the class cache has been cleared
+     */
+    boolean clearIfStale(ClassLoader classLoader, Scriptable scope) {
+        if (scope == null
+                || !(classLoader instanceof DynamicClassLoader)
+                || ((DynamicClassLoader) classLoader).isLive()) {
+            return false;
+        }
+
+        if (!staleClassLoaders.add(classLoader)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+
+        ClassCache.get(scope).clearCaches();
+        long generation = clears.incrementAndGet();
+        log.info(
+                "Detected dirty class loader on thread {}. Emptied Rhino's class cache (generation {}).",
+                Thread.currentThread().getName(),
+                generation);
+        return true;
+    }
+
+    // ---------- ClassCacheClearingMBean
+
+    @Override
+    public long getClearCount() {
+        return clears.get();
+    }
+
+    @Override
+    public long getSkippedClearCount() {
+        return skipped.get();
+    }
+}
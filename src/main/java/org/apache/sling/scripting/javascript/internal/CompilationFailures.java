@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.EvaluatorException;
+
+/**
+ * The <code>CompilationFailures</code> remember the scripts which failed to
+ * compile together with the hash of their source, such that requests for a
+ * broken script fail right away instead of parsing the same source again.
+ * A failure is forgotten as soon as the script is compiled from a different
+ * source.
+ */
+class CompilationFailures {
+
+    static final int MAX_ENTRIES = 1000;
+
+    private final Map<String, Failure> failures = new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Throws the failure recorded for the named script if it failed to
+     * compile from the source with the given hash.
+     *
+     * @throws EvaluatorException a copy of the recorded failure
+     */
+    void check(String scriptName, String sourceHash) {
+        final Failure failure;
+        synchronized (failures) {
+            failure = failures.get(scriptName);
+        }
+        if (failure != null && failure.sourceHash.equals(sourceHash)) {
+            hits.incrementAndGet();
+            final EvaluatorException cause = failure.exception;
+            // a new exception for each request, the recorded one may still
+            // be in use by another thread
+            throw new EvaluatorException(
+                    cause.details(), cause.sourceName(), cause.lineNumber(), cause.lineSource(), cause.columnNumber());
+        }
+    }
+
+    /**
+     * Records the failure to compile the named script from the source with
+     * the given hash.
+     */
+    void failed(String scriptName, String sourceHash, EvaluatorException exception) {
+        synchronized (failures) {
+            failures.put(scriptName, new Failure(sourceHash, exception));
+        }
+    }
+
+    /**
+     * Forgets any failure of the named script after it has been compiled.
+     */
+    void compiled(String scriptName) {
+        synchronized (failures) {
+            failures.remove(scriptName);
+        }
+    }
+
+    void clear() {
+        synchronized (failures) {
+            failures.clear();
+        }
+    }
+
+    int size() {
+        synchronized (failures) {
+            return failures.size();
+        }
+    }
+
+    /**
+     * Returns the number of compilations avoided by rethrowing a recorded
+     * failure.
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    private static class Failure {
+
+        private final String sourceHash;
+
+        private final EvaluatorException exception;
+
+        Failure(String sourceHash, EvaluatorException exception) {
+            this.sourceHash = sourceHash;
+            this.exception = exception;
+        }
+    }
+}
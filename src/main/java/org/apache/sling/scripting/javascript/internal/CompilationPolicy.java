@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>CompilationPolicy</code> defines how a script is compiled: the
+ * optimization level to use and whether the compiled script is to be kept
+ * in the script cache.
+ * <p>
+ * Policies are configured as rules of the form
+ * <code>&lt;glob&gt;=&lt;optLevel&gt;[,cache|nocache]</code>, for example
+ * <code>/apps/generated/**=-1,nocache</code>. In the glob <code>*</code>
+ * matches any characters except <code>/</code>, <code>**</code> matches any
+ * characters and <code>?</code> matches a single character except
+ * <code>/</code>. The first rule matching the script path applies.
+ */
+final class CompilationPolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompilationPolicy.class);
+
+    private static final String CACHE = "cache";
+
+    private static final String NO_CACHE = "nocache";
+
+    private final String rule;
+
+    private final Pattern pattern;
+
+    private final int optimizationLevel;
+
+    private final boolean cache;
+
+    private CompilationPolicy(String rule, Pattern pattern, int optimizationLevel, boolean cache) {
+        this.rule = rule;
+        this.pattern = pattern;
+        this.optimizationLevel = optimizationLevel;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the policy applied to scripts not matched by any rule.
+     */
+    static CompilationPolicy defaultPolicy(int optimizationLevel) {
+        return new CompilationPolicy("default", null, optimizationLevel, true);
+    }
+
+    /**
+     * Parses the given rules, ignoring and logging invalid ones.
+     */
+    static List<CompilationPolicy> parse(String[] rules) {
+        if (rules == null || rules.length == 0) {
+            return Collections.emptyList();
+        }
+        List<CompilationPolicy> policies = new ArrayList<CompilationPolicy>(rules.length);
+        for (String rule : rules) {
+            if (rule != null && rule.trim().length() > 0) {
+                try {
+                    policies.add(parse(rule.trim()));
+                } catch (IllegalArgumentException iae) {
+                    LOGGER.warn("Ignoring invalid compilation rule {}: {}", rule, iae.getMessage());
+                }
+            }
+        }
+        return Collections.unmodifiableList(policies);
+    }
+
+    static CompilationPolicy parse(String rule) {
+        int eq = rule.lastIndexOf('=');
+        if (eq <= 0) {
+            throw new IllegalArgumentException("missing path pattern");
+        }
+
+        String[] settings = rule.substring(eq + 1).split(",");
+        int optimizationLevel;
+        try {
+            optimizationLevel = Integer.parseInt(settings[0].trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("invalid optimization level " + settings[0].trim());
+        }
+        if (!Context.isValidOptimizationLevel(optimizationLevel)) {
+            throw new IllegalArgumentException("invalid optimization level " + optimizationLevel);
+        }
+
+        boolean cache = true;
+        if (settings.length > 2) {
+            throw new IllegalArgumentException("too many settings");
+        } else if (settings.length == 2) {
+            String setting = settings[1].trim();
+            if (NO_CACHE.equals(setting)) {
+                cache = false;
+            } else if (!CACHE.equals(setting)) {
+                throw new IllegalArgumentException("unknown setting " + setting);
+            }
+        }
+
+        return new CompilationPolicy(rule, toPattern(rule.substring(0, eq).trim()), optimizationLevel, cache);
+    }
+
+    boolean matches(String path) {
+        return pattern != null && pattern.matcher(path).matches();
+    }
+
+    /**
+     * Returns the optimization level to compile the script with.
+     */
+    int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /**
+     * Returns <code>true</code> if the compiled script may be put into the
+     * script cache.
+     */
+    boolean isCache() {
+        return cache;
+    }
+
+    @Override
+    public String toString() {
+        return "CompilationPolicy[" + rule + ", optLevel=" + optimizationLevel + ", cache=" + cache + "]";
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                if (c == '?') {
+                    regex.append("[^/]");
+                } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The <code>CompiledScriptCache</code> keeps track of the scripts compiled to
+ * Java byte code, weighed by the size of the classes generated for them.
+ * Unlike the <code>ScriptCache</code>, which bounds the number of scripts,
+ * this cache bounds the metaspace held by the generated classes: once the
+ * total weight exceeds the budget, the least recently used scripts are
+ * evicted and reported to the eviction callback, such that they can be
+ * dropped from the <code>ScriptCache</code> as well and their classes may be
+ * unloaded. Scripts are always looked up in the <code>ScriptCache</code>,
+ * this cache only records their use.
+ * <p>
+ * Interpreted scripts do not generate classes and are not kept in this
+ * cache.
+ */
+class CompiledScriptCache implements CompiledScriptCacheMBean {
+
+    private final long maxWeight;
+
+    private final Consumer<String> evictionCallback;
+
+    private final Map<String, Entry> scripts = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long weight;
+
+    private int classCount;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxWeight the maximum total size in bytes of the generated classes
+     * @param evictionCallback called with the name of each evicted script
+     *            outside of the cache lock
+     */
+    CompiledScriptCache(long maxWeight, Consumer<String> evictionCallback) {
+        this.maxWeight = maxWeight;
+        this.evictionCallback = evictionCallback;
+    }
+
+    /**
+     * Records the use of the named script, if kept, such that it is evicted
+     * after less recently used scripts.
+     */
+    void touch(String scriptName) {
+        final Entry entry;
+        synchronized (scripts) {
+            entry = scripts.get(scriptName);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the named script generated with the given number of classes of
+     * the given total size, evicting the least recently used scripts as needed.
+     * Scripts without generated classes are ignored.
+     */
+    void put(String scriptName, int scriptClassCount, long bytecodeSize) {
+        if (scriptClassCount <= 0) {
+            return;
+        }
+
+        misses.incrementAndGet();
+        List<String> evicted = new ArrayList<String>();
+        synchronized (scripts) {
+            removeEntry(scripts.remove(scriptName));
+            scripts.put(scriptName, new Entry(scriptClassCount, bytecodeSize));
+            weight += bytecodeSize;
+            classCount += scriptClassCount;
+
+            // the new script is kept even if it exceeds the budget on its own
+            Iterator<Map.Entry<String, Entry>> eldest = scripts.entrySet().iterator();
+            while (weight > maxWeight && scripts.size() > 1) {
+                Map.Entry<String, Entry> entry = eldest.next();
+                eldest.remove();
+                removeEntry(entry.getValue());
+                evicted.add(entry.getKey());
+            }
+        }
+
+        for (String name : evicted) {
+            evictions.incrementAndGet();
+            evictionCallback.accept(name);
+        }
+    }
+
+    /**
+     * Removes the named script, e.g. because it has been changed.
+     */
+    void remove(String scriptName) {
+        synchronized (scripts) {
+            removeEntry(scripts.remove(scriptName));
+        }
+    }
+
+    void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+            weight = 0;
+            classCount = 0;
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entry != null) {
+            weight -= entry.bytecodeSize;
+            classCount -= entry.classCount;
+        }
+    }
+
+    // ---------- CompiledScriptCacheMBean
+
+    @Override
+    public int getSize() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    @Override
+    public int getClassCount() {
+        synchronized (scripts) {
+            return classCount;
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        synchronized (scripts) {
+            return weight;
+        }
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return (lookups == 0) ? 0 : (double) hitCount / lookups;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private static class Entry {
+
+        private final int classCount;
+
+        private final long bytecodeSize;
+
+        Entry(int classCount, long bytecodeSize) {
+            this.classCount = classCount;
+            this.bytecodeSize = bytecodeSize;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+/**
+ * The <code>CompiledScriptCacheMBean</code> exposes the statistics of the
+ * cache of scripts compiled to Java byte code, which is bounded by the size
+ * of the generated classes.
+ */
+public interface CompiledScriptCacheMBean {
+
+    /**
+     * Returns the number of scripts currently cached.
+     */
+    int getSize();
+
+    /**
+     * Returns the number of classes generated for the cached scripts.
+     */
+    int getClassCount();
+
+    /**
+     * Returns the total size in bytes of the classes generated for the cached
+     * scripts.
+     */
+    long getWeight();
+
+    /**
+     * Returns the maximum total size in bytes of the classes generated for
+     * the cached scripts.
+     */
+    long getMaxWeight();
+
+    /**
+     * Returns the number of uses of cached scripts.
+     */
+    long getHitCount();
+
+    /**
+     * Returns the number of scripts compiled and added to the cache.
+     */
+    long getMissCount();
+
+    /**
+     * Returns the ratio of uses of cached scripts to all uses and
+     * compilations, between 0 and 1.
+     */
+    double getHitRate();
+
+    /**
+     * Returns the number of scripts evicted to stay within the maximum
+     * weight.
+     */
+    long getEvictionCount();
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import org.apache.sling.scripting.javascript.helper.SlingWrapFactory;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * The <code>FactorySnapshot</code> holds the state of an activated script
+ * engine factory needed to compile and run scripts. The factory publishes a
+ * new snapshot whenever this state changes, such that engines never have to
+ * synchronize with the factory on the request path.
+ */
+final class FactorySnapshot {
+
+    private final Scriptable rootScope;
+
+    private final SlingWrapFactory wrapFactory;
+
+    private final int optimizationLevel;
+
+    private final int languageVersion;
+
+    FactorySnapshot(Scriptable rootScope, SlingWrapFactory wrapFactory, int optimizationLevel, int languageVersion) {
+        this.rootScope = rootScope;
+        this.wrapFactory = wrapFactory;
+        this.optimizationLevel = optimizationLevel;
+        this.languageVersion = languageVersion;
+    }
+
+    /**
+     * Returns the shared global scope, the prototype of all request scopes.
+     */
+    Scriptable getRootScope() {
+        return rootScope;
+    }
+
+    SlingWrapFactory getWrapFactory() {
+        return wrapFactory;
+    }
+
+    /**
+     * Returns the configured optimization level from 0-9 or -1 if scripts
+     * are interpreted.
+     */
+    int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    int getLanguageVersion() {
+        return languageVersion;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.SecurityController;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+/**
+ * The <code>GeneratedScript</code> is a script compiled to Java byte code
+ * together with the number and size of the classes generated for it, which
+ * approximate the metaspace held by the script while it is cached.
+ */
+final class GeneratedScript {
+
+    static final String CLASS_NAME_PREFIX = "org.mozilla.javascript.gen.sling_";
+
+    private final Script script;
+
+    private final int classCount;
+
+    private final long bytecodeSize;
+
+    private GeneratedScript(Script script, int classCount, long bytecodeSize) {
+        this.script = script;
+        this.classCount = classCount;
+        this.bytecodeSize = bytecodeSize;
+    }
+
+    /**
+     * Compiles the source to byte code with the settings of the given
+     * context, whose optimization level must be 0 or higher.
+     */
+    static GeneratedScript compile(Context cx, String source, String scriptName, String className) {
+        CompilerEnvirons compilerEnv = new CompilerEnvirons();
+        compilerEnv.initFromContext(cx);
+        return define(new ClassCompiler(compilerEnv).compileToClassFiles(source, scriptName, 1, className));
+    }
+
+    /**
+     * Returns the name of the class generated for the source of the named
+     * script if no other name is given.
+     */
+    static String className(String scriptName, String source) {
+        return CLASS_NAME_PREFIX + ContentHash.of(scriptName, source).substring(0, 16);
+    }
+
+    /**
+     * Defines the classes generated for a script in their own class loader,
+     * just like Rhino's <code>Codegen</code> does, and instantiates the
+     * script. The loader is created by the <code>SecurityController</code> or
+     * the <code>ContextFactory</code> of the current context and only
+     * referenced by the script, such that the classes are unloaded with the
+     * script.
+     *
+     * @param classFiles the pairs of class name and class bytes as returned
+     *            by <code>ClassCompiler.compileToClassFiles</code>, starting
+     *            with the script class
+     */
+    static GeneratedScript define(Object[] classFiles) {
+        // the generated classes only refer to Rhino classes
+        GeneratedClassLoader loader = SecurityController.createLoader(Context.class.getClassLoader(), null);
+        Class<?> scriptClass = null;
+        long bytecodeSize = 0;
+        for (int i = 0; i < classFiles.length; i += 2) {
+            byte[] classBytes = (byte[]) classFiles[i + 1];
+            Class<?> cl = loader.defineClass((String) classFiles[i], classBytes);
+            loader.linkClass(cl);
+            if (scriptClass == null) {
+                scriptClass = cl;
+            }
+            bytecodeSize += classBytes.length;
+        }
+        try {
+            return new GeneratedScript((Script) scriptClass.newInstance(), classFiles.length / 2, bytecodeSize);
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to instantiate compiled script class " + classFiles[0], e);
+        }
+    }
+
+    /**
+     * Returns the size of a script which has not been compiled to byte code.
+     */
+    static GeneratedScript interpreted(Script script) {
+        return new GeneratedScript(script, 0, 0);
+    }
+
+    Script getScript() {
+        return script;
+    }
+
+    /**
+     * Returns the number of classes generated for the script.
+     */
+    int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Returns the total size in bytes of the classes generated for the
+     * script.
+     */
+    long getBytecodeSize() {
+        return bytecodeSize;
+    }
+}
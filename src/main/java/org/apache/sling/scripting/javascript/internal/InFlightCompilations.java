@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>InFlightCompilations</code> ensures that a script is compiled by
+ * at most one thread at a time. Threads asking for a script which is already
+ * being compiled wait for the running compilation and share its result
+ * instead of compiling the same script again.
+ */
+class InFlightCompilations {
+
+    /**
+     * A compilation of a single script
+     */
+    interface Compilation {
+        CompiledScript compile() throws ScriptException;
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<String, FutureTask<CompiledScript>> compilations =
+            new ConcurrentHashMap<String, FutureTask<CompiledScript>>();
+
+    private final AtomicLong compilationCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Runs the <code>compilation</code> for the named script unless a
+     * compilation for the same script is already running, in which case the
+     * result of the running compilation is awaited and returned.
+     *
+     * @param scriptName the name of the script being compiled
+     * @param compilation the compilation to run if none is in flight
+     * @return the compiled script
+     * @throws ScriptException if the (shared) compilation failed
+     */
+    CompiledScript compile(String scriptName, final Compilation compilation) throws ScriptException {
+        FutureTask<CompiledScript> task = new FutureTask<CompiledScript>(compilation::compile);
+        FutureTask<CompiledScript> inFlight = compilations.putIfAbsent(scriptName, task);
+        if (inFlight != null) {
+            coalescedCount.incrementAndGet();
+            log.debug("Waiting for running compilation of {}", scriptName);
+            return get(inFlight, scriptName);
+        }
+
+        try {
+            compilationCount.incrementAndGet();
+            task.run();
+            return get(task, scriptName);
+        } finally {
+            compilations.remove(scriptName, task);
+        }
+    }
+
+    /**
+     * Returns the number of compilations run.
+     */
+    long getCompilationCount() {
+        return compilationCount.get();
+    }
+
+    /**
+     * Returns the number of requests which waited for a running compilation
+     * instead of compiling the script themselves.
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private CompiledScript get(FutureTask<CompiledScript> task, String scriptName) throws ScriptException {
+        boolean interrupted = false;
+        try {
+            for (; ; ) {
+                try {
+                    return task.get();
+                } catch (InterruptedException ie) {
+                    // the compilation runs on another thread which we cannot
+                    // abort, so just keep waiting for it
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof ScriptException) {
+                throw (ScriptException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            final ScriptException se = new ScriptException("Failure compiling script " + scriptName);
+            se.initCause(cause);
+            throw se;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
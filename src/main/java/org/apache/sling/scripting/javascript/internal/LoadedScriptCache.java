@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.scripting.javascript.io.EspTranspiler;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * The <code>LoadedScriptCache</code> keeps the compiled scripts loaded
+ * through the global <code>load</code> and <code>require</code> functions
+ * across requests, such that each script is only compiled again once its
+ * resource has been modified. At most a fixed number of scripts is kept,
+ * least recently used first out.
+ * <p>
+ * Resources without modification time are compared by content, but only
+ * when they are first loaded in a request.
+ * <p>
+ * The cache is associated with the root scope of the script engine factory
+ * and may be retrieved from any scope with {@link #get(Scriptable)}.
+ */
+public final class LoadedScriptCache {
+
+    private static final String KEY = LoadedScriptCache.class.getName();
+
+    static final int MAX_ENTRIES = 1000;
+
+    private final Map<String, Entry> scripts;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile EspTranspiler espTranspiler = new EspTranspiler();
+
+    LoadedScriptCache() {
+        this(MAX_ENTRIES);
+    }
+
+    LoadedScriptCache(final int maxEntries) {
+        this.scripts = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LoadedScriptCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache associated with the root scope of the given scope or
+     * <code>null</code> if there is none.
+     */
+    public static LoadedScriptCache get(Scriptable scope) {
+        Object cache = ScriptableObject.getTopScopeValue(scope, KEY);
+        return (cache instanceof LoadedScriptCache) ? (LoadedScriptCache) cache : null;
+    }
+
+    /**
+     * Associates this cache with the given root scope.
+     */
+    void associate(ScriptableObject rootScope) {
+        rootScope.associateValue(KEY, this);
+    }
+
+    /**
+     * Sets the transpiler used to translate ESP scripts.
+     */
+    void setEspTranspiler(EspTranspiler espTranspiler) {
+        this.espTranspiler = espTranspiler;
+    }
+
+    /**
+     * Returns the compiled script of the resource, compiling it with the
+     * given context if it is not cached yet or the resource has been
+     * modified since it has been compiled.
+     *
+     * @param cx the context used to compile the script
+     * @param resource the resource providing the script source
+     * @param scriptName the name of the script used in stack traces
+     * @return the compiled script
+     * @throws IOException if the script source cannot be read
+     */
+    public Script getScript(Context cx, Resource resource, String scriptName) throws IOException {
+        final long modificationTime = resource.getResourceMetadata().getModificationTime();
+        final boolean loadedInRequest = modificationTime <= 0 && !firstLoadInRequest(cx, scriptName);
+        final Entry entry;
+        synchronized (scripts) {
+            entry = scripts.get(scriptName);
+        }
+        if (entry != null
+                && (loadedInRequest || (modificationTime > 0 && entry.modificationTime == modificationTime))) {
+            hits.incrementAndGet();
+            return entry.script;
+        }
+
+        final InputStream ins = resource.adaptTo(InputStream.class);
+        if (ins == null) {
+            throw new IOException("Script " + resource.getPath() + " cannot be read");
+        }
+        final String source;
+        try {
+            Reader scriptReader = new InputStreamReader(ins, StandardCharsets.UTF_8);
+            if (scriptName.endsWith(RhinoJavaScriptEngineFactory.ESP_SCRIPT_EXTENSION)) {
+                source = espTranspiler.transpile(scriptReader);
+            } else {
+                source = IOUtils.toString(scriptReader);
+            }
+        } finally {
+            IOUtils.closeQuietly(ins);
+        }
+
+        // resources without modification time are compared by content
+        final String sourceHash = ContentHash.of(source);
+        if (entry != null && entry.sourceHash.equals(sourceHash)) {
+            hits.incrementAndGet();
+            put(scriptName, new Entry(modificationTime, sourceHash, entry.script));
+            return entry.script;
+        }
+
+        misses.incrementAndGet();
+        final Script script = cx.compileString(source, scriptName, 1, null);
+        put(scriptName, new Entry(modificationTime, sourceHash, script));
+        return script;
+    }
+
+    /**
+     * Drops the compiled script of the given name.
+     */
+    public void invalidate(String scriptName) {
+        synchronized (scripts) {
+            scripts.remove(scriptName);
+        }
+    }
+
+    /**
+     * Drops all compiled scripts.
+     */
+    void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+    }
+
+    int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    private void put(String scriptName, Entry entry) {
+        synchronized (scripts) {
+            scripts.put(scriptName, entry);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> unless the named script has already been
+     * loaded during the current request. Outside of a request every load is
+     * the first one.
+     */
+    private static boolean firstLoadInRequest(Context cx, String scriptName) {
+        if (ScriptRuntime.hasTopCall(cx)) {
+            Scriptable scope = ScriptRuntime.getTopCallScope(cx);
+            if (scope instanceof RequestScope) {
+                return ((RequestScope) scope).loaded(scriptName);
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry {
+
+        private final long modificationTime;
+
+        private final String sourceHash;
+
+        private final Script script;
+
+        Entry(long modificationTime, String sourceHash, Script script) {
+            this.modificationTime = modificationTime;
+            this.sourceHash = sourceHash;
+            this.script = script;
+        }
+    }
+}
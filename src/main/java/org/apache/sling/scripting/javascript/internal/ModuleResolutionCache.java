@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * The <code>ModuleResolutionCache</code> remembers in which search path a
+ * module required by a script has been found, such that subsequent requires
+ * of the module only need a single lookup instead of one lookup per search
+ * path. Modules which could not be found are remembered for a limited time.
+ * <p>
+ * Entries are kept per user, since the resources visible in the search paths
+ * depend on the access rights. Found modules are looked up again on each use
+ * and resolved from scratch if they do not exist anymore. Entries are dropped
+ * when scripts are added or removed below the search paths. Since module ids
+ * are supplied by scripts, at most a fixed number of entries is kept, least
+ * recently used first out.
+ * <p>
+ * The cache is associated with the root scope of the script engine factory
+ * and may be retrieved from any scope with {@link #get(Scriptable)}.
+ */
+public final class ModuleResolutionCache {
+
+    private static final String KEY = ModuleResolutionCache.class.getName();
+
+    static final int MAX_ENTRIES = 1000;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ModuleResolutionCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private volatile long negativeTtl;
+
+    /**
+     * Returns the cache associated with the root scope of the given scope or
+     * <code>null</code> if there is none.
+     */
+    public static ModuleResolutionCache get(Scriptable scope) {
+        Object cache = ScriptableObject.getTopScopeValue(scope, KEY);
+        return (cache instanceof ModuleResolutionCache) ? (ModuleResolutionCache) cache : null;
+    }
+
+    /**
+     * Associates this cache with the given root scope.
+     */
+    void associate(ScriptableObject rootScope) {
+        rootScope.associateValue(KEY, this);
+    }
+
+    /**
+     * Sets the number of milliseconds a module which could not be found is
+     * not looked up again. A value of zero disables remembering missing
+     * modules.
+     */
+    void setNegativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the first existing resource for the module path in the search
+     * paths of the resolver or <code>null</code> if the module cannot be
+     * found.
+     *
+     * @param resolver the resolver of the requesting script
+     * @param modulePath the module path relative to the search paths
+     * @return the module resource or <code>null</code>
+     */
+    public Resource resolve(ResourceResolver resolver, String modulePath) {
+        final String key = resolver.getUserID() + '\0' + modulePath;
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (entry.path == null) {
+                if (System.currentTimeMillis() < entry.expires) {
+                    return null;
+                }
+            } else {
+                Resource resource = resolver.resolve(entry.path);
+                if (!(resource instanceof NonExistingResource)) {
+                    return resource;
+                }
+            }
+            synchronized (entries) {
+                entries.remove(key, entry);
+            }
+        }
+
+        for (String basepath : resolver.getSearchPath()) {
+            String path = basepath + modulePath;
+            Resource resource = resolver.resolve(path);
+            if (resource != null && !(resource instanceof NonExistingResource)) {
+                put(key, new Entry(path, 0));
+                return resource;
+            }
+        }
+
+        final long ttl = negativeTtl;
+        if (ttl > 0) {
+            put(key, new Entry(null, System.currentTimeMillis() + ttl));
+        }
+        return null;
+    }
+
+    /**
+     * Drops all entries possibly affected by a resource added at the given
+     * path, which may shadow found modules or provide missing ones.
+     */
+    void added(String path) {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Drops the found modules at or below the given path.
+     */
+    void removed(String path) {
+        synchronized (entries) {
+            for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+                String modulePath = i.next().getValue().path;
+                if (modulePath != null
+                        && modulePath.startsWith(path)
+                        && (modulePath.length() == path.length() || modulePath.charAt(path.length()) == '/')) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    private static final class Entry {
+
+        /** the resolved path or <code>null</code> if the module is missing */
+        private final String path;
+
+        /** the expiry time of an entry for a missing module */
+        private final long expires;
+
+        Entry(String path, long expires) {
+            this.path = path;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>PersistentScriptCache</code> keeps the class files generated by
+ * Rhino for compiled scripts in a local directory such that they can be
+ * reloaded after a restart without parsing and generating the code again.
+ * <p>
+ * Entries are keyed by the script name and the optimization level, such that
+ * compiling a changed script replaces its previous entry. The hash of the
+ * script source and the Rhino implementation version are recorded in the
+ * entry and any mismatch or failure reading an entry is treated as a cache
+ * miss and the script is compiled normally. Entries written in another format
+ * or for another Rhino version are removed when the cache is created. Only
+ * scripts compiled to Java byte code (optimization level 0 and higher) can be
+ * stored.
+ */
+class PersistentScriptCache {
+
+    /** Marker at the start of each entry file, incremented on format changes */
+    private static final int MAGIC = 0x534c4a03;
+
+    private static final String ENTRY_EXTENSION = ".class";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final File directory;
+
+    private final String rhinoVersion;
+
+    PersistentScriptCache(File directory, String rhinoVersion) {
+        this.directory = directory;
+        this.rhinoVersion = rhinoVersion;
+        CacheDirectory.prepare(directory, Integer.toHexString(MAGIC) + "/" + rhinoVersion, ENTRY_EXTENSION);
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the script for the given source either by loading the class
+     * stored for it or by compiling the source to a class which is then
+     * stored for later use.
+     *
+     * @param cx the current Context, whose optimization level must be 0 or higher
+     * @param source the JavaScript source to compile
+     * @param scriptName the name of the script used for the key and error reporting
+     * @return the compiled script
+     */
+    GeneratedScript getScript(Context cx, String source, String scriptName) {
+        final String sourceHash = ContentHash.of(source);
+        final String version = rhinoVersion + "/" + cx.getImplementationVersion();
+        final int optimizationLevel = cx.getOptimizationLevel();
+        final File entry =
+                new File(directory, ContentHash.of(scriptName, String.valueOf(optimizationLevel)) + ENTRY_EXTENSION);
+
+        GeneratedScript script = load(entry, scriptName, sourceHash, optimizationLevel, version);
+        if (script != null) {
+            log.debug("Loaded compiled script {} from {}", scriptName, entry);
+            return script;
+        }
+
+        final String className = GeneratedScript.CLASS_NAME_PREFIX
+                + ContentHash.of(scriptName, sourceHash, String.valueOf(optimizationLevel), version)
+                        .substring(0, 16);
+        CompilerEnvirons compilerEnv = new CompilerEnvirons();
+        compilerEnv.initFromContext(cx);
+        Object[] classFiles = new ClassCompiler(compilerEnv).compileToClassFiles(source, scriptName, 1, className);
+
+        store(entry, scriptName, sourceHash, optimizationLevel, version, classFiles);
+        return GeneratedScript.define(classFiles);
+    }
+
+    private GeneratedScript load(
+            File entry, String scriptName, String sourceHash, int optimizationLevel, String version) {
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            if (in.readInt() != MAGIC
+                    || !scriptName.equals(in.readUTF())
+                    || !sourceHash.equals(in.readUTF())
+                    || optimizationLevel != in.readInt()
+                    || !version.equals(in.readUTF())) {
+                log.debug("Ignoring stale compiled script entry {} for {}", entry, scriptName);
+                return null;
+            }
+            Object[] classFiles = new Object[2 * in.readInt()];
+            for (int i = 0; i < classFiles.length; i += 2) {
+                classFiles[i] = in.readUTF();
+                byte[] classBytes = new byte[in.readInt()];
+                in.readFully(classBytes);
+                classFiles[i + 1] = classBytes;
+            }
+            return GeneratedScript.define(classFiles);
+        } catch (IOException | RuntimeException | LinkageError e) {
+            log.warn("Failed loading compiled script " + scriptName + " from " + entry + ", recompiling", e);
+            return null;
+        }
+    }
+
+    private void store(
+            File entry,
+            String scriptName,
+            String sourceHash,
+            int optimizationLevel,
+            String version,
+            Object[] classFiles) {
+        File tmp = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                log.warn("Cannot create compiled script directory {}", directory);
+                return;
+            }
+
+            // write to a temporary file first such that concurrent readers
+            // never see a partially written entry
+            tmp = File.createTempFile("script", ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(scriptName);
+                out.writeUTF(sourceHash);
+                out.writeInt(optimizationLevel);
+                out.writeUTF(version);
+                out.writeInt(classFiles.length / 2);
+                for (int i = 0; i < classFiles.length; i += 2) {
+                    byte[] classBytes = (byte[]) classFiles[i + 1];
+                    out.writeUTF((String) classFiles[i]);
+                    out.writeInt(classBytes.length);
+                    out.write(classBytes);
+                }
+            }
+            Files.move(
+                    tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            log.debug("Stored compiled script {} in {}", scriptName, entry);
+        } catch (IOException ioe) {
+            log.warn("Failed storing compiled script " + scriptName + " in " + entry, ioe);
+        } finally {
+            if (tmp != null && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+}
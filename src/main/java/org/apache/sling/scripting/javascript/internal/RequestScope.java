@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.Bindings;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.api.scripting.LazyBindings;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * The <code>RequestScope</code> is the top level scope of a script executed
+ * for a request. Its prototype is the shared root scope.
+ * <p>
+ * The bindings are not copied into the scope upfront. Instead each binding is
+ * resolved and wrapped when it is first accessed by the script, such that
+ * scripts only pay for the bindings they actually use. The scope also
+ * records the names of the properties written by the script, which are the
+ * only ones to be copied back to the bindings.
+ * <p>
+ * Since each function created by a script looks up the function prototype
+ * of its top level scope, the scope also records whether any function has
+ * been created, which may keep a reference to the scope beyond the script
+ * execution.
+ */
+class RequestScope extends ImporterTopLevel {
+
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, Object> unresolvedBindings;
+
+    private final Set<String> writtenNames = new LinkedHashSet<String>();
+
+    private final Set<String> loadedScripts = new HashSet<String>();
+
+    private boolean createdFunctions;
+
+    private boolean escaped;
+
+    RequestScope(Scriptable rootScope) {
+        // We want this to be a new top-level scope, so set its parent scope
+        // to null. This means that any variables created by assignments will
+        // be properties of this scope.
+        setPrototype(rootScope);
+        setParentScope(null);
+    }
+
+    /**
+     * Makes the bindings available to the script. Any names written before
+     * are forgotten.
+     */
+    void bind(Bindings bindings) {
+        unresolvedBindings = bindings.isEmpty() ? null : new HashMap<String, Object>(bindings);
+        writtenNames.clear();
+        loadedScripts.clear();
+    }
+
+    /**
+     * Drops the bindings not accessed by the script, the names written and
+     * the scripts loaded.
+     */
+    void unbind() {
+        unresolvedBindings = null;
+        writtenNames.clear();
+        loadedScripts.clear();
+    }
+
+    /**
+     * Records that the named script is loaded by the script and returns
+     * <code>true</code> if it has not been loaded since the bindings have
+     * been bound.
+     */
+    boolean loaded(String scriptName) {
+        return loadedScripts.add(scriptName);
+    }
+
+    /**
+     * Returns the names of the properties written by the script since the
+     * bindings have been bound, in the order they were first written.
+     */
+    Set<String> getWrittenNames() {
+        return writtenNames;
+    }
+
+    /**
+     * Records that the scope is referenced beyond the script execution, for
+     * example because the script returned it.
+     */
+    void escape() {
+        escaped = true;
+    }
+
+    /**
+     * Returns <code>true</code> unless a function has been created in this
+     * scope or the scope has escaped, in which case the scope must not be
+     * reused for another script execution.
+     */
+    boolean isReusable() {
+        return !createdFunctions && !escaped;
+    }
+
+    @Override
+    public Scriptable getBuiltinPrototype(Builtins type) {
+        if (type == Builtins.Function) {
+            createdFunctions = true;
+        }
+        return super.getBuiltinPrototype(type);
+    }
+
+    @Override
+    public boolean has(String name, Scriptable start) {
+        resolve(name);
+        return super.has(name, start);
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        resolve(name);
+        return super.get(name, start);
+    }
+
+    @Override
+    public void put(String name, Scriptable start, Object value) {
+        if (unresolvedBindings != null) {
+            unresolvedBindings.remove(name);
+        }
+        if (start == this) {
+            writtenNames.add(name);
+        }
+        super.put(name, start, value);
+    }
+
+    @Override
+    public void delete(String name) {
+        if (unresolvedBindings != null) {
+            unresolvedBindings.remove(name);
+        }
+        super.delete(name);
+    }
+
+    @Override
+    public Object[] getIds() {
+        resolveAll();
+        return super.getIds();
+    }
+
+    @Override
+    public Object[] getAllIds() {
+        resolveAll();
+        return super.getAllIds();
+    }
+
+    private void resolve(String name) {
+        if (unresolvedBindings == null || !unresolvedBindings.containsKey(name)) {
+            return;
+        }
+
+        Object value = unresolvedBindings.remove(name);
+        if (value instanceof LazyBindings.Supplier) {
+            value = ((LazyBindings.Supplier) value).get();
+        }
+        if (value != null) {
+            // not recorded as written by the script
+            super.put(name, this, ScriptRuntime.toObject(this, value));
+        }
+    }
+
+    private void resolveAll() {
+        if (unresolvedBindings != null) {
+            for (String name : unresolvedBindings.keySet().toArray(new String[0])) {
+                resolve(name);
+            }
+        }
+    }
+}
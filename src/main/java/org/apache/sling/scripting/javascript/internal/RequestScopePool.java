@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.scripting.javascript.helper.SlingGlobal;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>RequestScopePool</code> recycles the top level scopes created
+ * for each top level script execution, keeping at most one idle scope per
+ * thread.
+ * <p>
+ * When a scope is released, all its own properties and the modules required
+ * with it are removed. A scope which cannot be cleared completely, for
+ * example because the script sealed it or prevented extensions, is discarded
+ * instead of being reused. So is a scope in which a function has been
+ * created or which has been returned by the script, as functions and the
+ * scope itself may be kept beyond the request, e.g. in a request attribute,
+ * and would see the state of the next request. A scope stored by Java code
+ * without being returned cannot be detected, hence scopes must not be
+ * pooled for scripts which pass their <code>this</code> to Java objects
+ * outliving the request.
+ */
+class RequestScopePool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestScopePool.class);
+
+    private final ThreadLocal<RequestScope> idleScopes = new ThreadLocal<RequestScope>();
+
+    private final AtomicLong createdScopes = new AtomicLong();
+
+    private final AtomicLong reusedScopes = new AtomicLong();
+
+    private final AtomicLong discardedScopes = new AtomicLong();
+
+    /**
+     * Returns the idle scope of the current thread or a new scope if there
+     * is none. The scope has the root scope as its prototype and no parent.
+     */
+    RequestScope acquire(Scriptable rootScope) {
+        RequestScope scope = idleScopes.get();
+        if (scope != null) {
+            idleScopes.remove();
+            if (scope.getPrototype() == rootScope) {
+                reusedScopes.incrementAndGet();
+                return scope;
+            }
+            // the root scope has been replaced in the meantime
+            discardedScopes.incrementAndGet();
+        }
+
+        scope = new RequestScope(rootScope);
+        createdScopes.incrementAndGet();
+        return scope;
+    }
+
+    /**
+     * Clears the scope and keeps it as the idle scope of the current thread.
+     */
+    void release(RequestScope scope) {
+        scope.unbind();
+        if (scope.isReusable() && clear(scope)) {
+            idleScopes.set(scope);
+        } else {
+            discardedScopes.incrementAndGet();
+        }
+    }
+
+    long getCreatedScopes() {
+        return createdScopes.get();
+    }
+
+    long getReusedScopes() {
+        return reusedScopes.get();
+    }
+
+    long getDiscardedScopes() {
+        return discardedScopes.get();
+    }
+
+    private boolean clear(RequestScope scope) {
+        if (scope.isSealed() || !scope.isExtensible() || scope.getParentScope() != null) {
+            return false;
+        }
+
+        try {
+            for (Object id : scope.getAllIds()) {
+                // variables are declared permanent, so they have to be made
+                // configurable before they can be deleted
+                if (id instanceof String) {
+                    scope.setAttributes((String) id, ScriptableObject.EMPTY);
+                    scope.delete((String) id);
+                } else if (id instanceof Integer) {
+                    scope.setAttributes((Integer) id, ScriptableObject.EMPTY);
+                    scope.delete((Integer) id);
+                } else {
+                    return false;
+                }
+            }
+        } catch (RuntimeException re) {
+            LOGGER.debug("Cannot clear request scope: {}", re.getMessage());
+            return false;
+        }
+
+        // Rhino itself only associates values with a top level scope for
+        // functions created in it, which are not reused
+        SlingGlobal.clearRequiredModules(scope);
+        return scope.getAllIds().length == 0;
+    }
+}
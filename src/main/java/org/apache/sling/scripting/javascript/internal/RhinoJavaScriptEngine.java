@@ -27,28 +27,28 @@ import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.scripting.LazyBindings;
 import org.apache.sling.api.scripting.SlingBindings;
 import org.apache.sling.api.scripting.SlingScriptHelper;
-import org.apache.sling.commons.classloader.DynamicClassLoader;
 import org.apache.sling.scripting.api.AbstractSlingScriptEngine;
 import org.apache.sling.scripting.api.CachedScript;
 import org.apache.sling.scripting.api.ScriptCache;
 import org.apache.sling.scripting.api.ScriptNameAware;
 import org.apache.sling.scripting.core.ScriptNameAwareReader;
-import org.apache.sling.scripting.javascript.io.EspReader;
-import org.mozilla.javascript.ClassCache;
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.JavaScriptException;
-import org.mozilla.javascript.Script;
 import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
@@ -67,75 +67,251 @@ public class RhinoJavaScriptEngine extends AbstractSlingScriptEngine implements
     private static final Logger LOGGER = LoggerFactory.getLogger(RhinoJavaScriptEngine.class);
     private static final String NO_SCRIPT_NAME = "NO_SCRIPT_NAME";
 
-    private Scriptable rootScope;
-    private ScriptCache scriptCache;
+    private final RhinoJavaScriptEngineFactory factory;
+    private final FactorySnapshot snapshot;
+    private final ScriptCache scriptCache;
 
     public RhinoJavaScriptEngine(ScriptEngineFactory factory, Scriptable rootScope, ScriptCache scriptCache) {
+        this(
+                (RhinoJavaScriptEngineFactory) factory,
+                new FactorySnapshot(
+                        rootScope,
+                        ((RhinoJavaScriptEngineFactory) factory).getWrapFactory(),
+                        ((RhinoJavaScriptEngineFactory) factory).getOptimizationLevel(),
+                        ((RhinoJavaScriptEngineFactory) factory).rhinoLanguageVersion()),
+                scriptCache);
+    }
+
+    /**
+     * Creates an engine for the given state of the factory. The snapshot is
+     * immutable and may be shared by any number of engines.
+     */
+    RhinoJavaScriptEngine(RhinoJavaScriptEngineFactory factory, FactorySnapshot snapshot, ScriptCache scriptCache) {
         super(factory);
-        this.rootScope = rootScope;
+        this.factory = factory;
+        this.snapshot = snapshot;
         this.scriptCache = scriptCache;
     }
 
+    FactorySnapshot getSnapshot() {
+        return snapshot;
+    }
+
     public CompiledScript compile(String script) throws ScriptException {
-        Reader reader = null;
-        try {
-            reader = new InputStreamReader(IOUtils.toInputStream(script));
-            return compile(reader);
-        } finally {
-            IOUtils.closeQuietly(reader);
-        }
+        return compileAnonymous(script);
     }
 
     public CompiledScript compile(Reader scriptReader) throws ScriptException {
         final String scriptName = getScriptName(scriptReader);
+        final CompiledScriptCache compiledScriptCache = factory.getCompiledScriptCache();
         CachedScript cachedScript = scriptCache.getScript(scriptName);
         if (cachedScript != null) {
             LOGGER.debug("Detected cached script for {}.", scriptName);
+            if (compiledScriptCache != null) {
+                compiledScriptCache.touch(scriptName);
+            }
             return cachedScript.getCompiledScript();
-        } else {
-            scriptReader = wrapReaderIfEspScript(scriptReader, scriptName);
+        } else if (scriptName.equals(NO_SCRIPT_NAME)) {
             try {
-                final Context rhinoContext = Context.enter();
-                rhinoContext.setLanguageVersion(((RhinoJavaScriptEngineFactory) getFactory()).rhinoLanguageVersion());
-                rhinoContext.setOptimizationLevel(optimizationLevel());
+                return compileAnonymous(IOUtils.toString(scriptReader));
+            } catch (IOException e) {
+                final ScriptException se = new ScriptException("Failure reading script: " + e.getMessage());
+                se.initCause(e);
+                throw se;
+            }
+        } else if (compiledScriptCache != null) {
+            // the script has been dropped from the ScriptCache, e.g. by its
+            // own eviction, and is not to be weighed anymore
+            compiledScriptCache.remove(scriptName);
+        }
 
-                if (!ScriptRuntime.hasTopCall(rhinoContext)) {
-                    // setup the context for use
-                    WrapFactory wrapFactory = ((RhinoJavaScriptEngineFactory) getFactory()).getWrapFactory();
-                    rhinoContext.setWrapFactory(wrapFactory);
+        final StaleScripts staleScripts = factory.getStaleScripts();
+        if (staleScripts != null) {
+            final CompiledScript stale = staleScripts.getStale(scriptName);
+            if (stale != null) {
+                // keep serving the previous version while the changed script
+                // is compiled in the background
+                final String source;
+                try {
+                    source = IOUtils.toString(scriptReader);
+                } catch (IOException e) {
+                    final ScriptException se = new ScriptException("Failure reading script: " + e.getMessage());
+                    se.initCause(e);
+                    throw se;
                 }
+                staleScripts.revalidate(scriptName, source, () -> factory.getInFlightCompilations()
+                        .compile(scriptName, () -> compileSource(source, scriptName)));
+                LOGGER.debug("Serving previous version of changed script {}.", scriptName);
+                return stale;
+            }
+        }
 
-                final int lineNumber = 1;
-                final Object securityDomain = null;
-
-                final Script script = rhinoContext.compileReader(scriptReader, scriptName, lineNumber, securityDomain);
-                final SlingCompiledScript slingCompiledScript = new SlingCompiledScript(script, this);
-                cachedScript = new CachedScript() {
-                    @Override
-                    public String getScriptPath() {
-                        return scriptName;
-                    }
-
-                    @Override
-                    public CompiledScript getCompiledScript() {
-                        return slingCompiledScript;
-                    }
-                };
-                // SLING-4935 avoid caching scripts for which we cannot determine a name
-                if (!scriptName.equals(NO_SCRIPT_NAME)) {
-                    scriptCache.putScript(cachedScript);
-                }
-                LOGGER.debug("Added {} script to Script Cache.", scriptName);
-                return slingCompiledScript;
+        // concurrent requests for the same script share a single compilation
+        return factory.getInFlightCompilations().compile(scriptName, () -> {
+            // the script may have been cached by a compilation which
+            // completed just before this one was started
+            CachedScript cached = scriptCache.getScript(scriptName);
+            if (cached != null) {
+                return cached.getCompiledScript();
+            }
+            try {
+                return compileSource(IOUtils.toString(scriptReader), scriptName);
             } catch (IOException e) {
-                final ScriptException se =
-                        new ScriptException("Failure running script " + scriptName + ": " + e.getMessage());
+                final ScriptException se = new ScriptException("Failure reading script: " + e.getMessage());
                 se.initCause(e);
                 throw se;
-            } finally {
-                Context.exit();
             }
+        });
+    }
+
+    /**
+     * Compiles the source of a named script unless the same source already
+     * failed to compile, in which case the recorded failure is thrown again
+     * without parsing the source.
+     */
+    private CompiledScript compileSource(String source, String scriptName) throws ScriptException {
+        final CompilationFailures compilationFailures = factory.getCompilationFailures();
+        final CompilationPolicy policy = getCompilationPolicy(scriptName);
+        final String sourceHash = ContentHash.of(source, String.valueOf(policy.getOptimizationLevel()));
+        compilationFailures.check(scriptName, sourceHash);
+        try {
+            final CompiledScript compiledScript = compile(new StringReader(source), scriptName, policy);
+            compilationFailures.compiled(scriptName);
+            return compiledScript;
+        } catch (EvaluatorException ee) {
+            compilationFailures.failed(scriptName, sourceHash, ee);
+            throw ee;
+        }
+    }
+
+    /**
+     * Compiles a script without a name, which cannot be kept in the
+     * <code>ScriptCache</code> (SLING-4935). Such scripts are cached by the
+     * hash of their source instead.
+     */
+    private CompiledScript compileAnonymous(final String source) throws ScriptException {
+        final AnonymousScriptCache anonymousScriptCache = factory.getAnonymousScriptCache();
+        final CompilationPolicy policy = getCompilationPolicy(NO_SCRIPT_NAME);
+        if (anonymousScriptCache == null) {
+            return compile(new StringReader(source), NO_SCRIPT_NAME, policy);
+        }
+
+        final String key = AnonymousScriptCache.key(source, policy.getOptimizationLevel());
+        CompiledScript compiledScript = anonymousScriptCache.get(key);
+        if (compiledScript != null) {
+            return compiledScript;
         }
+
+        return factory.getInFlightCompilations().compile(NO_SCRIPT_NAME + ":" + key, () -> {
+            CompiledScript compiled = compile(new StringReader(source), NO_SCRIPT_NAME, policy);
+            anonymousScriptCache.put(key, compiled);
+            return compiled;
+        });
+    }
+
+    /**
+     * Returns the policy to compile the named script with. Scripts without a
+     * name are compiled with the configured optimization level.
+     */
+    private CompilationPolicy getCompilationPolicy(String scriptName) {
+        return scriptName.equals(NO_SCRIPT_NAME)
+                ? CompilationPolicy.defaultPolicy(optimizationLevel())
+                : factory.getCompilationPolicy(scriptName);
+    }
+
+    private CompiledScript compile(Reader scriptReader, final String scriptName, final CompilationPolicy policy)
+            throws ScriptException {
+        scriptReader = wrapReaderIfEspScript(scriptReader, scriptName);
+        try {
+            final Context rhinoContext = Context.enter();
+            rhinoContext.setLanguageVersion(snapshot.getLanguageVersion());
+            rhinoContext.setOptimizationLevel(policy.getOptimizationLevel());
+
+            if (!ScriptRuntime.hasTopCall(rhinoContext)) {
+                // setup the context for use
+                WrapFactory wrapFactory = snapshot.getWrapFactory();
+                rhinoContext.setWrapFactory(wrapFactory);
+            }
+
+            final SlingCompiledScript slingCompiledScript;
+            final int tieredThreshold = factory.getTieredThreshold();
+            if (tieredThreshold > 0 && rhinoContext.getOptimizationLevel() >= 0 && !scriptName.equals(NO_SCRIPT_NAME)) {
+                // start interpreted, the script is compiled to byte code once
+                // it has been executed often enough
+                final String source = IOUtils.toString(scriptReader);
+                rhinoContext.setOptimizationLevel(-1);
+                final GeneratedScript script =
+                        GeneratedScript.interpreted(rhinoContext.compileString(source, scriptName, 1, null));
+                slingCompiledScript =
+                        new SlingCompiledScript(script, scriptName, policy, source, tieredThreshold, this);
+            } else {
+                final GeneratedScript script = compileScript(rhinoContext, scriptReader, scriptName);
+                slingCompiledScript = new SlingCompiledScript(script, scriptName, policy, null, 0, this);
+            }
+            final CachedScript cachedScript = new CachedScript() {
+                @Override
+                public String getScriptPath() {
+                    return scriptName;
+                }
+
+                @Override
+                public CompiledScript getCompiledScript() {
+                    return slingCompiledScript;
+                }
+            };
+            // SLING-4935 avoid caching scripts for which we cannot determine a name
+            if (!scriptName.equals(NO_SCRIPT_NAME) && policy.isCache()) {
+                scriptCache.putScript(cachedScript);
+                LOGGER.debug("Added {} script to Script Cache using {}.", scriptName, policy);
+                slingCompiledScript.addToCompiledScriptCache();
+                final StaleScripts staleScripts = factory.getStaleScripts();
+                if (staleScripts != null) {
+                    staleScripts.compiled(scriptName, slingCompiledScript);
+                }
+            }
+            return slingCompiledScript;
+        } catch (IOException e) {
+            final ScriptException se =
+                    new ScriptException("Failure running script " + scriptName + ": " + e.getMessage());
+            se.initCause(e);
+            throw se;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Compiles the script read from the reader with the settings of the
+     * current context, using the persistent bytecode cache if available.
+     * If the compiled script cache is enabled, scripts compiled to byte code
+     * are compiled to a class directly, such that the size of the generated
+     * class is known. Otherwise and while a debugger is attached, scripts are
+     * compiled by the context, which notifies the debugger.
+     */
+    private GeneratedScript compileScript(Context rhinoContext, Reader scriptReader, String scriptName)
+            throws IOException {
+        if (rhinoContext.getDebugger() != null) {
+            // Rhino only supports debugging interpreted scripts
+            rhinoContext.setOptimizationLevel(-1);
+        }
+
+        final PersistentScriptCache persistentScriptCache = factory.getPersistentScriptCache();
+        if (persistentScriptCache != null
+                && rhinoContext.getOptimizationLevel() >= 0
+                && !scriptName.equals(NO_SCRIPT_NAME)) {
+            return persistentScriptCache.getScript(rhinoContext, IOUtils.toString(scriptReader), scriptName);
+        }
+
+        if (rhinoContext.getOptimizationLevel() >= 0 && factory.getCompiledScriptCache() != null) {
+            final String source = IOUtils.toString(scriptReader);
+            return GeneratedScript.compile(
+                    rhinoContext, source, scriptName, GeneratedScript.className(scriptName, source));
+        }
+
+        final int lineNumber = 1;
+        final Object securityDomain = null;
+        return GeneratedScript.interpreted(
+                rhinoContext.compileReader(scriptReader, scriptName, lineNumber, securityDomain));
     }
 
     public Object eval(Reader scriptReader, ScriptContext scriptContext) throws ScriptException {
@@ -161,7 +337,7 @@ public class RhinoJavaScriptEngine extends AbstractSlingScriptEngine implements
 
     private Reader wrapReaderIfEspScript(Reader scriptReader, String scriptName) {
         if (scriptName.endsWith(RhinoJavaScriptEngineFactory.ESP_SCRIPT_EXTENSION)) {
-            scriptReader = new EspReader(scriptReader);
+            scriptReader = factory.getEspTranspiler().transpilingReader(scriptReader);
         }
         return scriptReader;
     }
@@ -193,7 +369,23 @@ public class RhinoJavaScriptEngine extends AbstractSlingScriptEngine implements
     }
 
     private void getBoundProperties(Scriptable scope, Bindings bindings) {
-        Object[] ids = scope.getIds();
+        final String writeBackMode = factory.getWriteBackMode();
+        final Object[] ids;
+        if (!(scope instanceof RequestScope) || RhinoJavaScriptEngineFactory.WRITE_BACK_ALL.equals(writeBackMode)) {
+            ids = scope.getIds();
+        } else if (RhinoJavaScriptEngineFactory.WRITE_BACK_LISTED.equals(writeBackMode)) {
+            final Set<String> writeBackNames = factory.getWriteBackNames();
+            final List<String> names = new ArrayList<String>();
+            for (String name : ((RequestScope) scope).getWrittenNames()) {
+                if (writeBackNames.contains(name)) {
+                    names.add(name);
+                }
+            }
+            ids = names.toArray();
+        } else {
+            // only the properties written by the script differ from the bindings
+            ids = ((RequestScope) scope).getWrittenNames().toArray();
+        }
         for (Object id : ids) {
             if (id instanceof String) {
                 String key = (String) id;
@@ -218,64 +410,161 @@ public class RhinoJavaScriptEngine extends AbstractSlingScriptEngine implements
     }
 
     private int optimizationLevel() {
-        return ((RhinoJavaScriptEngineFactory) getFactory()).getOptimizationLevel();
+        return snapshot.getOptimizationLevel();
     }
 
     private class SlingCompiledScript extends CompiledScript {
 
-        private final Script script;
+        private volatile GeneratedScript script;
+        private final String scriptName;
+        private final CompilationPolicy policy;
         private final ScriptEngine engine;
 
-        SlingCompiledScript(Script script, ScriptEngine engine) {
+        /**
+         * The source of an interpreted script to be compiled to byte code
+         * once it has been executed <code>tieredThreshold</code> times or
+         * <code>null</code> if the script is not to be promoted.
+         */
+        private volatile String source;
+
+        private final int tieredThreshold;
+        private final AtomicInteger invocations = new AtomicInteger();
+
+        SlingCompiledScript(
+                GeneratedScript script,
+                String scriptName,
+                CompilationPolicy policy,
+                String source,
+                int tieredThreshold,
+                ScriptEngine engine) {
             this.script = script;
+            this.scriptName = scriptName;
+            this.policy = policy;
+            this.source = source;
+            this.tieredThreshold = tieredThreshold;
             this.engine = engine;
         }
 
+        /**
+         * Returns the policy the script has been compiled with.
+         */
+        CompilationPolicy getCompilationPolicy() {
+            return policy;
+        }
+
+        /**
+         * Adds the script to the cache of scripts compiled to byte code,
+         * unless it is interpreted.
+         */
+        private void addToCompiledScriptCache() {
+            final CompiledScriptCache compiledScriptCache = factory.getCompiledScriptCache();
+            final GeneratedScript generated = script;
+            if (compiledScriptCache != null && generated.getClassCount() > 0) {
+                compiledScriptCache.put(scriptName, generated.getClassCount(), generated.getBytecodeSize());
+            }
+        }
+
+        private void countInvocation() {
+            if (source != null && invocations.incrementAndGet() == tieredThreshold) {
+                factory.promote(this::promote);
+            }
+        }
+
+        /**
+         * Compiles the source with the configured optimization level and
+         * replaces the interpreted script. Since the cached script refers to
+         * this instance, the compiled version is used for all subsequent
+         * executions.
+         */
+        private void promote() {
+            final String interpretedSource = source;
+            if (interpretedSource == null) {
+                return;
+            }
+            final Context rhinoContext = Context.enter();
+            try {
+                rhinoContext.setLanguageVersion(snapshot.getLanguageVersion());
+                rhinoContext.setOptimizationLevel(policy.getOptimizationLevel());
+                rhinoContext.setWrapFactory(snapshot.getWrapFactory());
+                script = compileScript(rhinoContext, new StringReader(interpretedSource), scriptName);
+                LOGGER.debug("Compiled hot script {} using {}", scriptName, policy);
+                if (policy.isCache()) {
+                    addToCompiledScriptCache();
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Failed compiling hot script " + scriptName + ", keeping it interpreted", e);
+            } finally {
+                source = null;
+                Context.exit();
+            }
+        }
+
         @Override
         public Object eval(ScriptContext scriptContext) throws ScriptException {
             Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
 
+            final ScriptUsageTracker usageTracker = factory.getScriptUsageTracker();
+            if (usageTracker != null && !NO_SCRIPT_NAME.equals(scriptName)) {
+                usageTracker.record(scriptName);
+            }
+            countInvocation();
+
             // container for replaced properties
             Map<String, Object> replacedProperties = null;
             Scriptable scope = null;
             boolean isTopLevelCall = false;
+            final RequestScopePool requestScopePool = factory.getRequestScopePool();
+            RequestScope pooledScope = null;
 
             // create a rhino Context and execute the script
             try {
 
                 final Context rhinoContext = Context.enter();
-                rhinoContext.setLanguageVersion(((RhinoJavaScriptEngineFactory) getFactory()).rhinoLanguageVersion());
+                rhinoContext.setLanguageVersion(snapshot.getLanguageVersion());
                 rhinoContext.setOptimizationLevel(optimizationLevel());
 
                 if (ScriptRuntime.hasTopCall(rhinoContext)) {
                     // reuse the top scope if we are included
                     scope = ScriptRuntime.getTopCallScope(rhinoContext);
 
-                } else {
-                    // create the request top scope, use the ImporterToplevel here
-                    // to support the importPackage and importClasses functions
-                    scope = new ImporterTopLevel();
+                } else if (requestScopePool != null) {
+                    // reuse a cleared request top scope of this thread
+                    pooledScope = requestScopePool.acquire(snapshot.getRootScope());
+                    scope = pooledScope;
 
-                    // Set the global scope to be our prototype
-                    scope.setPrototype(rootScope);
+                    // setup the context for use
+                    WrapFactory wrapFactory = snapshot.getWrapFactory();
+                    rhinoContext.setWrapFactory(wrapFactory);
+
+                    // this is the top level call
+                    isTopLevelCall = true;
 
-                    // We want "scope" to be a new top-level scope, so set its
-                    // parent scope to null. This means that any variables created
-                    // by assignments will be properties of "scope".
-                    scope.setParentScope(null);
+                } else {
+                    // create the request top scope, an ImporterToplevel
+                    // with the global scope as its prototype
+                    scope = new RequestScope(snapshot.getRootScope());
 
                     // setup the context for use
-                    WrapFactory wrapFactory = ((RhinoJavaScriptEngineFactory) getFactory()).getWrapFactory();
+                    WrapFactory wrapFactory = snapshot.getWrapFactory();
                     rhinoContext.setWrapFactory(wrapFactory);
 
                     // this is the top level call
                     isTopLevelCall = true;
                 }
 
-                // add initial properties to the scope
-                replacedProperties = setBoundProperties(scope, bindings);
+                if (isTopLevelCall) {
+                    // bindings are added to the new scope when accessed
+                    ((RequestScope) scope).bind(bindings);
+                } else {
+                    // add initial properties to the scope
+                    replacedProperties = setBoundProperties(scope, bindings);
+                }
 
-                Object result = script.exec(rhinoContext, scope);
+                Object result = script.getScript().exec(rhinoContext, scope);
+                if (pooledScope != null && result == pooledScope) {
+                    // the scope must not be reused while the caller holds it
+                    pooledScope.escape();
+                }
 
                 if (result instanceof Wrapper) {
                     result = ((Wrapper) result).unwrap();
@@ -331,22 +620,13 @@ public class RhinoJavaScriptEngine extends AbstractSlingScriptEngine implements
 
                 // if properties have been replaced, reset them
                 resetBoundProperties(scope, replacedProperties);
-                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-                if (classLoader instanceof DynamicClassLoader) {
-                    DynamicClassLoader dynamicClassLoader = (DynamicClassLoader) classLoader;
-                    if (!dynamicClassLoader.isLive()) {
-                        /**
-                         * if the class loader on this thread is a dynamic class loader and it's dirty we should clear Rhino's class cache
-                         * to avoid class loader leaks
-                         */
-                        if (scope != null) {
-                            ClassCache classCache = ClassCache.get(scope);
-                            classCache.clearCaches();
-                            LOGGER.info(
-                                    "Detected dirty class loader on thread {}. Emptying Rhino's class cache.",
-                                    Thread.currentThread().getName());
-                        }
-                    }
+                // if the class loader on this thread is a dynamic class loader
+                // and it's dirty, Rhino's class cache is cleared to avoid class
+                // loader leaks, once for each generation of the class loader
+                factory.getClassCacheClearing()
+                        .clearIfStale(Thread.currentThread().getContextClassLoader(), scope);
+                if (pooledScope != null) {
+                    requestScopePool.release(pooledScope);
                 }
                 Context.exit();
             }
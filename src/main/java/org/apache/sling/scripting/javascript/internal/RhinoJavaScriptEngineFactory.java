@@ -21,18 +21,29 @@ package org.apache.sling.scripting.javascript.internal;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
+import java.util.regex.PatternSyntaxException;
 
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
 import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.scripting.api.AbstractScriptEngineFactory;
@@ -41,6 +52,7 @@ import org.apache.sling.scripting.javascript.RhinoHostObjectProvider;
 import org.apache.sling.scripting.javascript.SlingWrapper;
 import org.apache.sling.scripting.javascript.helper.SlingContextFactory;
 import org.apache.sling.scripting.javascript.helper.SlingWrapFactory;
+import org.apache.sling.scripting.javascript.io.EspTranspiler;
 import org.apache.sling.scripting.javascript.wrapper.ScriptableCalendar;
 import org.apache.sling.scripting.javascript.wrapper.ScriptableItemMap;
 import org.apache.sling.scripting.javascript.wrapper.ScriptableMap;
@@ -58,8 +70,10 @@ import org.mozilla.javascript.NativeJavaPackage;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.tools.debugger.ScopeProvider;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -106,6 +120,23 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
 
     public static final String ESP_SCRIPT_EXTENSION = "esp";
 
+    /**
+     * Copy back all top level variables of a script, including the unchanged
+     * bindings.
+     */
+    static final String WRITE_BACK_ALL = "all";
+
+    /**
+     * Copy back the top level variables written by a script.
+     */
+    static final String WRITE_BACK_WRITTEN = "written";
+
+    /**
+     * Copy back the top level variables written by a script which are
+     * listed in the configuration.
+     */
+    static final String WRITE_BACK_LISTED = "listed";
+
     private static final Class<?>[] HOSTOBJECT_CLASSES = {
         ScriptableResource.class,
         ScriptableNode.class,
@@ -125,7 +156,9 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
 
     private int optimizationLevel;
 
-    private static final int RHINO_LANGUAGE_VERSION = Context.VERSION_ES6;
+    private volatile List<CompilationPolicy> compilationPolicies = Collections.emptyList();
+
+    static final int RHINO_LANGUAGE_VERSION = Context.VERSION_ES6;
     private static final String LANGUAGE_VERSION = "partial ECMAScript 2015 support";
     private static final String LANGUAGE_NAME = "ECMAScript";
 
@@ -133,6 +166,26 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
 
     private Scriptable rootScope;
 
+    private volatile FactorySnapshot snapshot;
+
+    private PersistentScriptCache persistentScriptCache;
+
+    private final InFlightCompilations inFlightCompilations = new InFlightCompilations();
+
+    private final CompilationFailures compilationFailures = new CompilationFailures();
+
+    private final ClassCacheClearing classCacheClearing = new ClassCacheClearing();
+
+    private ServiceRegistration<ClassCacheClearingMBean> classCacheClearingRegistration;
+
+    private final LoadedScriptCache loadedScriptCache = new LoadedScriptCache();
+
+    private final ModuleResolutionCache moduleResolutionCache = new ModuleResolutionCache();
+
+    private final ScriptDependencies scriptDependencies = new ScriptDependencies();
+
+    private ServiceRegistration<ResourceChangeListener> scriptChangeListenerRegistration;
+
     private final Set<RhinoHostObjectProvider> hostObjectProvider = new HashSet<RhinoHostObjectProvider>();
 
     @Reference
@@ -141,6 +194,47 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
     @Reference
     private ScriptCache scriptCache = null;
 
+    private ResourceResolverFactory resourceResolverFactory;
+
+    /**
+     * The warm-up configured on activation but not started yet, because no
+     * <code>ResourceResolverFactory</code> has been bound. Guarded by
+     * <code>warmUpLock</code>, as are the factory and the running warm-up.
+     */
+    private Consumer<ResourceResolverFactory> pendingWarmUp;
+
+    private ScriptWarmUp scriptWarmUp;
+
+    private final Object warmUpLock = new Object();
+
+    private volatile AnonymousScriptCache anonymousScriptCache;
+
+    private volatile RequestScopePool requestScopePool;
+
+    private volatile CompiledScriptCache compiledScriptCache;
+
+    private ServiceRegistration<CompiledScriptCacheMBean> compiledScriptCacheRegistration;
+
+    private volatile EspTranspiler espTranspiler = new EspTranspiler();
+
+    private volatile String writeBackMode = WRITE_BACK_WRITTEN;
+
+    private volatile Set<String> writeBackNames = Collections.emptySet();
+
+    private ServiceRegistration<AnonymousScriptCacheMBean> anonymousScriptCacheRegistration;
+
+    private volatile int tieredThreshold;
+
+    private volatile ExecutorService promoter;
+
+    private volatile StaleScripts staleScripts;
+
+    private volatile ExecutorService revalidator;
+
+    private volatile ScriptUsageTracker scriptUsageTracker;
+
+    private ServiceRegistration<ScriptWarmUpMBean> scriptWarmUpRegistration;
+
     // SLING-9792
     private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
     private final Lock readLock = rwl.readLock();
@@ -148,11 +242,18 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
     private volatile boolean active = false;
 
     public ScriptEngine getScriptEngine() {
+        // the published snapshot is shared without locking, each caller
+        // gets its own engine with its own default context and bindings
+        final FactorySnapshot current = snapshot;
+        if (current != null) {
+            return new RhinoJavaScriptEngine(this, current, scriptCache);
+        }
+
         ScriptEngine se = null;
         readLock.lock();
         try {
             if (active) {
-                se = new RhinoJavaScriptEngine(this, getRootScope(), scriptCache);
+                se = new RhinoJavaScriptEngine(this, publishSnapshot(), scriptCache);
             } else {
                 log.warn("getScriptEngine() called, but this component is not active.");
             }
@@ -182,6 +283,19 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
         return optimizationLevel;
     }
 
+    /**
+     * Returns the policy of the first compilation rule matching the script
+     * path or the default policy using the configured optimization level.
+     */
+    CompilationPolicy getCompilationPolicy(String scriptName) {
+        for (CompilationPolicy policy : compilationPolicies) {
+            if (policy.matches(scriptName)) {
+                return policy;
+            }
+        }
+        return CompilationPolicy.defaultPolicy(getOptimizationLevel());
+    }
+
     int rhinoLanguageVersion() {
         return Context.VERSION_ES6;
     }
@@ -195,11 +309,16 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
     }
 
     public Scriptable getScope() {
+        final FactorySnapshot current = snapshot;
+        if (current != null) {
+            return current.getRootScope();
+        }
+
         Scriptable scope = null;
         readLock.lock();
         try {
             if (active) {
-                scope = getRootScope();
+                scope = publishSnapshot().getRootScope();
             } else {
                 log.warn("getScope() called, but this component is not active.");
             }
@@ -214,6 +333,130 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
         return wrapFactory;
     }
 
+    /**
+     * Returns the persistent bytecode cache or <code>null</code> if compiled
+     * scripts are not to be stored on disk.
+     */
+    PersistentScriptCache getPersistentScriptCache() {
+        return persistentScriptCache;
+    }
+
+    /**
+     * Returns the cache of scripts compiled without a name or
+     * <code>null</code> if these scripts are not cached.
+     */
+    AnonymousScriptCache getAnonymousScriptCache() {
+        return anonymousScriptCache;
+    }
+
+    /**
+     * Returns the cache of scripts compiled to byte code bounded by the size
+     * of the generated classes or <code>null</code> if only the
+     * <code>ScriptCache</code> is used.
+     */
+    CompiledScriptCache getCompiledScriptCache() {
+        return compiledScriptCache;
+    }
+
+    /**
+     * Returns the pool of request scopes or <code>null</code> if a new scope
+     * is to be created for each request.
+     */
+    RequestScopePool getRequestScopePool() {
+        return requestScopePool;
+    }
+
+    /**
+     * Returns which top level variables are copied back to the bindings, one
+     * of {@link #WRITE_BACK_ALL}, {@link #WRITE_BACK_WRITTEN} or
+     * {@link #WRITE_BACK_LISTED}.
+     */
+    String getWriteBackMode() {
+        return writeBackMode;
+    }
+
+    /**
+     * Returns the names of the variables copied back in the
+     * {@link #WRITE_BACK_LISTED} mode.
+     */
+    Set<String> getWriteBackNames() {
+        return writeBackNames;
+    }
+
+    /**
+     * Returns the previous versions of changed scripts served while they are
+     * recompiled or <code>null</code> if changed scripts are compiled by the
+     * requests needing them.
+     */
+    StaleScripts getStaleScripts() {
+        return staleScripts;
+    }
+
+    ClassCacheClearing getClassCacheClearing() {
+        return classCacheClearing;
+    }
+
+    /**
+     * Returns the transpiler translating ESP scripts as configured.
+     */
+    EspTranspiler getEspTranspiler() {
+        return espTranspiler;
+    }
+
+    CompilationFailures getCompilationFailures() {
+        return compilationFailures;
+    }
+
+    InFlightCompilations getInFlightCompilations() {
+        return inFlightCompilations;
+    }
+
+    /**
+     * Returns the tracker recording script executions or <code>null</code>
+     * if hot scripts are not tracked.
+     */
+    ScriptUsageTracker getScriptUsageTracker() {
+        return scriptUsageTracker;
+    }
+
+    /**
+     * Returns the number of executions after which an interpreted script is
+     * compiled with the configured optimization level or zero if scripts are
+     * compiled right away.
+     */
+    int getTieredThreshold() {
+        return tieredThreshold;
+    }
+
+    /**
+     * Runs the compilation of a hot script in the background. The task is
+     * dropped if the factory has been deactivated in the meantime.
+     */
+    void promote(Runnable compilation) {
+        final ExecutorService executor = promoter;
+        if (executor != null) {
+            try {
+                executor.execute(compilation);
+            } catch (RejectedExecutionException ree) {
+                // deactivated in the meantime
+            }
+        }
+    }
+
+    /**
+     * Publishes a snapshot of the current state of the factory unless one
+     * has already been published. The snapshot is shared by all engines until
+     * the state changes, e.g. because the root scope is dropped.
+     */
+    private synchronized FactorySnapshot publishSnapshot() {
+        FactorySnapshot current = snapshot;
+        if (current == null) {
+            current = new FactorySnapshot(getRootScope(), wrapFactory, optimizationLevel, rhinoLanguageVersion());
+            snapshot = current;
+        }
+        return current;
+    }
+
     @SuppressWarnings("unchecked")
     private Scriptable getRootScope() {
         if (rootScope == null) {
@@ -222,7 +465,12 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
             try {
                 rhinoContext.setOptimizationLevel(optimizationLevel);
                 rhinoContext.setLanguageVersion(RHINO_LANGUAGE_VERSION);
-                Scriptable tmpScope = rhinoContext.initStandardObjects(new ImporterTopLevel(rhinoContext), false);
+                ScriptableObject tmpScope = rhinoContext.initStandardObjects(new ImporterTopLevel(rhinoContext), false);
+
+                // compiled modules are shared by all requests
+                loadedScriptCache.associate(tmpScope);
+                moduleResolutionCache.associate(tmpScope);
+                scriptDependencies.associate(tmpScope);
 
                 // default classes
                 addHostObjects(tmpScope, (Class<? extends ScriptableObject>[]) HOSTOBJECT_CLASSES);
@@ -257,8 +505,11 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
             ((SlingContextFactory) contextFactory).exitDebugger();
         }
 
-        // drop the scope
-        rootScope = null;
+        // drop the scope and the snapshot using it
+        synchronized (this) {
+            snapshot = null;
+            rootScope = null;
+        }
     }
 
     // ---------- SCR integration
@@ -301,6 +552,54 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
         }
 
         optimizationLevel = readOptimizationLevel(configuration);
+        compilationPolicies =
+                CompilationPolicy.parse(configuration.org_apache_sling_scripting_javascript_rhino_compilationRules());
+        persistentScriptCache = createPersistentScriptCache(context, configuration, debugging, rhinoVersion);
+        moduleResolutionCache.setNegativeTtl(
+                1000L * configuration.org_apache_sling_scripting_javascript_rhino_moduleResolution_negativeTtl());
+        writeBackMode = readWriteBackMode(configuration);
+        writeBackNames = readWriteBackNames(configuration);
+        EspTranspiler transpiler = createEspTranspiler(context, configuration);
+        transpiler.setCoalesceText(configuration.org_apache_sling_scripting_javascript_rhino_esp_coalesceText());
+        espTranspiler = transpiler;
+        loadedScriptCache.setEspTranspiler(transpiler);
+        if (configuration.org_apache_sling_scripting_javascript_rhino_scopePooling()) {
+            requestScopePool = new RequestScopePool();
+        }
+        if (configuration.org_apache_sling_scripting_javascript_rhino_tiered()) {
+            promoter = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Rhino hot script compiler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            tieredThreshold = Math.max(1, configuration.org_apache_sling_scripting_javascript_rhino_tiered_threshold());
+            log.info("Compiling scripts after {} interpreted executions", tieredThreshold);
+        }
+
+        if (configuration.org_apache_sling_scripting_javascript_rhino_staleWhileRevalidate()) {
+            revalidator = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Rhino changed script compiler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            int maxStaleness = Math.max(
+                    0, configuration.org_apache_sling_scripting_javascript_rhino_staleWhileRevalidate_maxStaleness());
+            staleScripts = new StaleScripts(1000L * maxStaleness, revalidator);
+            log.info("Serving changed scripts for at most {}s while recompiling them", maxStaleness);
+        }
+
+        long metaspaceBudget = configuration.org_apache_sling_scripting_javascript_rhino_compiledScriptCache_budget();
+        if (metaspaceBudget > 0) {
+            compiledScriptCache = new CompiledScriptCache(1024L * metaspaceBudget, scriptName -> {
+                // allow the generated classes to be unloaded
+                scriptCache.removeScript(scriptName);
+                final StaleScripts stale = staleScripts;
+                if (stale != null) {
+                    stale.removed(scriptName);
+                }
+                log.debug("Evicted compiled script {} to stay within the metaspace budget", scriptName);
+            });
+        }
 
         writeLock.lock();
         try {
@@ -328,14 +627,160 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
 
             log.info("Activated with optimization level {}", optimizationLevel);
             active = true;
+            publishSnapshot();
         } finally {
             writeLock.unlock();
         }
+
+        List<String> hotScripts = Collections.emptyList();
+        if (configuration.org_apache_sling_scripting_javascript_rhino_hotScripts()) {
+            File file = context.getBundleContext().getDataFile("hotscripts.txt");
+            if (file != null) {
+                ScriptUsageTracker tracker = new ScriptUsageTracker(
+                        file, configuration.org_apache_sling_scripting_javascript_rhino_hotScripts_size());
+                hotScripts = tracker.load();
+                tracker.start(configuration.org_apache_sling_scripting_javascript_rhino_hotScripts_interval());
+                scriptUsageTracker = tracker;
+            } else {
+                log.warn("No file available to record hot scripts, hot script tracking disabled");
+            }
+        }
+
+        Dictionary<String, Object> listenerProps = new Hashtable<String, Object>();
+        listenerProps.put(ResourceChangeListener.PATHS, ".");
+        listenerProps.put(ResourceChangeListener.CHANGES, new String[] {
+            ResourceChangeListener.CHANGE_ADDED,
+            ResourceChangeListener.CHANGE_CHANGED,
+            ResourceChangeListener.CHANGE_REMOVED
+        });
+        listenerProps.put(Constants.SERVICE_DESCRIPTION, "Apache Sling Rhino Script Change Listener");
+        listenerProps.put(Constants.SERVICE_VENDOR, "The Apache Software Foundation");
+        scriptChangeListenerRegistration = context.getBundleContext()
+                .registerService(
+                        ResourceChangeListener.class,
+                        new ScriptChangeListener(
+                                scriptCache,
+                                loadedScriptCache,
+                                moduleResolutionCache,
+                                scriptDependencies,
+                                staleScripts,
+                                compiledScriptCache),
+                        listenerProps);
+
+        int anonymousScriptCacheSize =
+                configuration.org_apache_sling_scripting_javascript_rhino_anonymousScriptCache_size();
+        if (anonymousScriptCacheSize > 0) {
+            anonymousScriptCache = new AnonymousScriptCache(anonymousScriptCacheSize);
+            Dictionary<String, Object> cacheProps = new Hashtable<String, Object>();
+            cacheProps.put("jmx.objectname", "org.apache.sling.scripting.javascript:type=AnonymousScriptCache");
+            cacheProps.put(Constants.SERVICE_DESCRIPTION, "Apache Sling Rhino Anonymous Script Cache");
+            cacheProps.put(Constants.SERVICE_VENDOR, "The Apache Software Foundation");
+            anonymousScriptCacheRegistration = context.getBundleContext()
+                    .registerService(AnonymousScriptCacheMBean.class, anonymousScriptCache, cacheProps);
+        }
+
+        Dictionary<String, Object> clearingProps = new Hashtable<String, Object>();
+        clearingProps.put("jmx.objectname", "org.apache.sling.scripting.javascript:type=ClassCacheClearing");
+        clearingProps.put(Constants.SERVICE_DESCRIPTION, "Apache Sling Rhino Class Cache Clearing");
+        clearingProps.put(Constants.SERVICE_VENDOR, "The Apache Software Foundation");
+        classCacheClearingRegistration = context.getBundleContext()
+                .registerService(ClassCacheClearingMBean.class, classCacheClearing, clearingProps);
+
+        final CompiledScriptCache cache = compiledScriptCache;
+        if (cache != null) {
+            Dictionary<String, Object> cacheProps = new Hashtable<String, Object>();
+            cacheProps.put("jmx.objectname", "org.apache.sling.scripting.javascript:type=CompiledScriptCache");
+            cacheProps.put(Constants.SERVICE_DESCRIPTION, "Apache Sling Rhino Compiled Script Cache");
+            cacheProps.put(Constants.SERVICE_VENDOR, "The Apache Software Foundation");
+            compiledScriptCacheRegistration =
+                    context.getBundleContext().registerService(CompiledScriptCacheMBean.class, cache, cacheProps);
+        }
+
+        final boolean warmUp = configuration.org_apache_sling_scripting_javascript_rhino_warmup();
+        if (warmUp || !hotScripts.isEmpty()) {
+            final BundleContext bundleContext = context.getBundleContext();
+            final List<String> scripts = hotScripts;
+            synchronized (warmUpLock) {
+                pendingWarmUp = rrf -> startWarmUp(bundleContext, configuration, scripts, warmUp, rrf);
+                if (resourceResolverFactory != null) {
+                    startPendingWarmUp();
+                } else {
+                    log.info("Script warm-up waits for a ResourceResolverFactory");
+                }
+            }
+        }
     }
 
     @Deactivate
     @SuppressWarnings("unused")
     protected void deactivate(ComponentContext context) {
+        synchronized (warmUpLock) {
+            pendingWarmUp = null;
+            stopWarmUp();
+        }
+
+        if (scriptChangeListenerRegistration != null) {
+            try {
+                scriptChangeListenerRegistration.unregister();
+            } catch (IllegalStateException ignore) {
+                // already unregistered
+            }
+            scriptChangeListenerRegistration = null;
+        }
+
+        if (anonymousScriptCacheRegistration != null) {
+            try {
+                anonymousScriptCacheRegistration.unregister();
+            } catch (IllegalStateException ignore) {
+                // already unregistered
+            }
+            anonymousScriptCacheRegistration = null;
+        }
+        anonymousScriptCache = null;
+
+        if (classCacheClearingRegistration != null) {
+            try {
+                classCacheClearingRegistration.unregister();
+            } catch (IllegalStateException ignore) {
+                // already unregistered
+            }
+            classCacheClearingRegistration = null;
+        }
+
+        if (compiledScriptCacheRegistration != null) {
+            try {
+                compiledScriptCacheRegistration.unregister();
+            } catch (IllegalStateException ignore) {
+                // already unregistered
+            }
+            compiledScriptCacheRegistration = null;
+        }
+        final CompiledScriptCache cache = compiledScriptCache;
+        if (cache != null) {
+            compiledScriptCache = null;
+            cache.clear();
+        }
+
+        tieredThreshold = 0;
+        final ExecutorService executor = promoter;
+        if (executor != null) {
+            promoter = null;
+            executor.shutdownNow();
+        }
+
+        staleScripts = null;
+        final ExecutorService changedScriptCompiler = revalidator;
+        if (changedScriptCompiler != null) {
+            revalidator = null;
+            changedScriptCompiler.shutdownNow();
+        }
+
+        final ScriptUsageTracker tracker = scriptUsageTracker;
+        if (tracker != null) {
+            scriptUsageTracker = null;
+            tracker.stop();
+        }
+
         writeLock.lock();
         try {
             // remove the root scope
@@ -346,6 +791,11 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
 
             // remove references
             wrapFactory = null;
+            persistentScriptCache = null;
+            loadedScriptCache.clear();
+            compilationFailures.clear();
+            scriptDependencies.clear();
+            requestScopePool = null;
             hostObjectProvider.clear();
 
             active = false;
@@ -440,4 +890,178 @@ public class RhinoJavaScriptEngineFactory extends AbstractScriptEngineFactory im
         }
         return optLevel;
     }
+
+    private String readWriteBackMode(final RhinoJavaScriptEngineFactoryConfiguration configuration) {
+        String mode = configuration.org_apache_sling_scripting_javascript_rhino_writeBack();
+        if (mode == null) {
+            return WRITE_BACK_WRITTEN;
+        }
+        mode = mode.trim();
+        if (!WRITE_BACK_ALL.equals(mode) && !WRITE_BACK_WRITTEN.equals(mode) && !WRITE_BACK_LISTED.equals(mode)) {
+            log.warn("Invalid variable write-back {}, using default value", mode);
+            return WRITE_BACK_WRITTEN;
+        }
+        return mode;
+    }
+
+    private Set<String> readWriteBackNames(final RhinoJavaScriptEngineFactoryConfiguration configuration) {
+        String[] names = configuration.org_apache_sling_scripting_javascript_rhino_writeBack_names();
+        if (names == null || names.length == 0) {
+            return Collections.emptySet();
+        }
+        Set<String> result = new HashSet<String>();
+        for (String name : names) {
+            if (name != null && name.trim().length() > 0) {
+                result.add(name.trim());
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Binds the factory used by the warm-up and starts the warm-up if it has
+     * been waiting for it since activation.
+     */
+    @Reference(
+            cardinality = ReferenceCardinality.OPTIONAL,
+            policy = ReferencePolicy.DYNAMIC,
+            unbind = "unbindResourceResolverFactory")
+    protected void bindResourceResolverFactory(ResourceResolverFactory factory) {
+        synchronized (warmUpLock) {
+            resourceResolverFactory = factory;
+            startPendingWarmUp();
+        }
+    }
+
+    /**
+     * Unbinds the factory and stops a running warm-up, whose resource
+     * resolver has been created by the factory.
+     */
+    protected void unbindResourceResolverFactory(ResourceResolverFactory factory) {
+        synchronized (warmUpLock) {
+            if (resourceResolverFactory == factory) {
+                resourceResolverFactory = null;
+                stopWarmUp();
+            }
+        }
+    }
+
+    /**
+     * Starts the pending warm-up, if any, with the bound factory. Must be
+     * called holding <code>warmUpLock</code>.
+     */
+    private void startPendingWarmUp() {
+        final Consumer<ResourceResolverFactory> warmUp = pendingWarmUp;
+        if (warmUp != null && resourceResolverFactory != null) {
+            pendingWarmUp = null;
+            warmUp.accept(resourceResolverFactory);
+        }
+    }
+
+    private void startWarmUp(
+            final BundleContext bundleContext,
+            final RhinoJavaScriptEngineFactoryConfiguration configuration,
+            final List<String> hotScripts,
+            final boolean scanSearchPaths,
+            final ResourceResolverFactory rrf) {
+        try {
+            scriptWarmUp = new ScriptWarmUp(
+                    this,
+                    rrf,
+                    configuration.org_apache_sling_scripting_javascript_rhino_warmup_includes(),
+                    configuration.org_apache_sling_scripting_javascript_rhino_warmup_excludes(),
+                    configuration.org_apache_sling_scripting_javascript_rhino_warmup_threads(),
+                    hotScripts,
+                    scanSearchPaths);
+        } catch (PatternSyntaxException pse) {
+            log.warn("Cannot warm up scripts, invalid path pattern: {}", pse.getMessage());
+            return;
+        }
+
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put("jmx.objectname", "org.apache.sling.scripting.javascript:type=ScriptWarmUp");
+        props.put(Constants.SERVICE_DESCRIPTION, "Apache Sling Rhino Script Warm-Up");
+        props.put(Constants.SERVICE_VENDOR, "The Apache Software Foundation");
+        scriptWarmUpRegistration = bundleContext.registerService(ScriptWarmUpMBean.class, scriptWarmUp, props);
+
+        scriptWarmUp.start();
+    }
+
+    private void stopWarmUp() {
+        if (scriptWarmUpRegistration != null) {
+            try {
+                scriptWarmUpRegistration.unregister();
+            } catch (IllegalStateException ignore) {
+                // already unregistered
+            }
+            scriptWarmUpRegistration = null;
+        }
+        if (scriptWarmUp != null) {
+            scriptWarmUp.stop();
+            scriptWarmUp = null;
+        }
+    }
+
+    private EspTranspiler createEspTranspiler(
+            final ComponentContext context, final RhinoJavaScriptEngineFactoryConfiguration configuration) {
+        // the size is configured in KB, the cache is weighed in characters
+        long maxWeight =
+                512L * Math.max(0, configuration.org_apache_sling_scripting_javascript_rhino_esp_sourceCache_size());
+        File directory = null;
+        String version = null;
+        long maxDiskSize = 1024L
+                * Math.max(
+                        0, configuration.org_apache_sling_scripting_javascript_rhino_esp_sourceCache_persistent_size());
+        if (configuration.org_apache_sling_scripting_javascript_rhino_esp_sourceCache_persistent()) {
+            // the translation may change with any update of this bundle
+            Bundle bundle = context.getBundleContext().getBundle();
+            directory = context.getBundleContext().getDataFile("esp");
+            if (bundle == null || directory == null) {
+                log.warn("No directory available for the persistent transpiled ESP cache, caching in memory only");
+                directory = null;
+            } else {
+                version = bundle.getVersion() + "/" + bundle.getLastModified();
+                log.info("Storing transpiled ESP scripts in {}", directory);
+            }
+        }
+        int maxFunctionLength =
+                Math.max(0, configuration.org_apache_sling_scripting_javascript_rhino_esp_functionSize());
+        if (maxWeight > 0 || directory != null) {
+            return new CachingEspTranspiler(maxWeight, directory, version, maxDiskSize, maxFunctionLength);
+        }
+        if (maxFunctionLength > 0) {
+            return new SplittingEspTranspiler(maxFunctionLength);
+        }
+        return new EspTranspiler();
+    }
+
+    private PersistentScriptCache createPersistentScriptCache(
+            final ComponentContext context,
+            final RhinoJavaScriptEngineFactoryConfiguration configuration,
+            final boolean debugging,
+            final String rhinoVersion) {
+        if (!configuration.org_apache_sling_scripting_javascript_rhino_bytecodeCache()) {
+            return null;
+        }
+        if (debugging) {
+            // the debugger needs the scripts to be compiled from their source
+            log.info("Persistent bytecode cache disabled while debugging");
+            return null;
+        }
+
+        File directory;
+        String path = configuration.org_apache_sling_scripting_javascript_rhino_bytecodeCache_directory();
+        if (path != null && path.trim().length() > 0) {
+            directory = new File(path.trim());
+        } else {
+            directory = context.getBundleContext().getDataFile("bytecode");
+        }
+        if (directory == null) {
+            log.warn("No directory available for the persistent bytecode cache, caching disabled");
+            return null;
+        }
+
+        log.info("Storing compiled scripts in {}", directory);
+        return new PersistentScriptCache(directory, rhinoVersion);
+    }
 }
@@ -20,6 +20,7 @@ package org.apache.sling.scripting.javascript.internal;
 
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 
 @ObjectClassDefinition(
         name = "Apache Sling Rhino JavaScript Engine Factory",
@@ -32,4 +33,155 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
                     "The level of optimization for the bytecode generated by Rhino. Provide values between 0-9, 9 being the most aggressive level of optimization. A value of -1 will run scripts in interpreted mode.")
     int org_apache_sling_scripting_javascript_rhino_optLevel() default
             RhinoJavaScriptEngineFactory.DEFAULT_OPTIMIZATION_LEVEL;
+
+    @AttributeDefinition(
+            name = "Persistent bytecode cache",
+            description =
+                    "If enabled, the classes generated for compiled scripts are stored on disk and reloaded after a restart instead of compiling the scripts again. Only applies to optimization levels 0-9.")
+    boolean org_apache_sling_scripting_javascript_rhino_bytecodeCache() default false;
+
+    @AttributeDefinition(
+            name = "Bytecode cache directory",
+            description =
+                    "The directory used by the persistent bytecode cache. If empty, a directory in the bundle's data area is used.")
+    String org_apache_sling_scripting_javascript_rhino_bytecodeCache_directory() default "";
+
+    @AttributeDefinition(
+            name = "Warm up scripts",
+            description =
+                    "If enabled, all scripts found below the search paths of the resource resolver are compiled in the background after activation. This requires a service user mapping for this bundle with read access to the search paths. Progress is exposed through the org.apache.sling.scripting.javascript:type=ScriptWarmUp MBean.")
+    boolean org_apache_sling_scripting_javascript_rhino_warmup() default false;
+
+    @AttributeDefinition(
+            name = "Warm-up includes",
+            description =
+                    "Regular expressions matched against the script paths to warm up. If empty, all scripts are included.")
+    String[] org_apache_sling_scripting_javascript_rhino_warmup_includes() default {};
+
+    @AttributeDefinition(
+            name = "Warm-up excludes",
+            description = "Regular expressions matched against the script paths to exclude from the warm-up.")
+    String[] org_apache_sling_scripting_javascript_rhino_warmup_excludes() default {};
+
+    @AttributeDefinition(
+            name = "Warm-up threads",
+            description = "The maximum number of threads compiling scripts in parallel during the warm-up.")
+    int org_apache_sling_scripting_javascript_rhino_warmup_threads() default 2;
+
+    @AttributeDefinition(
+            name = "Warm up hot scripts",
+            description =
+                    "If enabled, the number of executions of each script is recorded and the most frequently executed scripts are written to the bundle's data area. After a restart these scripts are compiled first, most frequently executed first, before the warm-up reports being ready.")
+    boolean org_apache_sling_scripting_javascript_rhino_hotScripts() default false;
+
+    @AttributeDefinition(
+            name = "Hot script count",
+            description = "The maximum number of most frequently executed scripts to remember.")
+    int org_apache_sling_scripting_javascript_rhino_hotScripts_size() default 500;
+
+    @AttributeDefinition(
+            name = "Hot script write interval",
+            description = "The interval in seconds at which the hot scripts are written to disk.")
+    int org_apache_sling_scripting_javascript_rhino_hotScripts_interval() default 300;
+
+    @AttributeDefinition(
+            name = "Tiered compilation",
+            description =
+                    "If enabled, scripts are first run in interpreted mode and only compiled with the configured optimization level in the background once they have been executed often enough. This saves class generation and metaspace for rarely executed scripts. Only applies to optimization levels 0-9.")
+    boolean org_apache_sling_scripting_javascript_rhino_tiered() default false;
+
+    @AttributeDefinition(
+            name = "Tiered compilation threshold",
+            description = "The number of executions after which an interpreted script is compiled.")
+    int org_apache_sling_scripting_javascript_rhino_tiered_threshold() default 100;
+
+    @AttributeDefinition(
+            name = "Compilation rules",
+            description =
+                    "Ordered rules overriding the optimization level for scripts matching a path pattern, in the form <glob>=<optLevel>[,cache|nocache], e.g. /apps/generated/**=-1,nocache. In the pattern * matches within a path segment and ** across segments. The first matching rule applies, scripts compiled with nocache are not kept in the script cache.")
+    String[] org_apache_sling_scripting_javascript_rhino_compilationRules() default {};
+
+    @AttributeDefinition(
+            name = "Anonymous script cache size",
+            description =
+                    "The maximum number of scripts compiled without a script name, e.g. through ScriptEngine.eval(String), which are cached by the hash of their source. A value of 0 disables the cache.")
+    int org_apache_sling_scripting_javascript_rhino_anonymousScriptCache_size() default 100;
+
+    @AttributeDefinition(
+            name = "Reuse request scopes",
+            description =
+                    "If enabled, the top level scope created for each request is cleared and reused by the next request on the same thread instead of creating a new scope for each request. Scopes in which functions have been created, which are returned by the script or which cannot be cleared completely are discarded. Scripts which pass their top level scope (this) to Java objects outliving the request must not be used with pooling.")
+    boolean org_apache_sling_scripting_javascript_rhino_scopePooling() default false;
+
+    @AttributeDefinition(
+            name = "Variable write-back",
+            description =
+                    "Which top level variables of a script are copied back to the bindings once the script completes: only the variables written by the script, only the written variables listed in the write-back names, or all variables of the scope including the unchanged bindings.",
+            options = {
+                @Option(label = "Written variables", value = RhinoJavaScriptEngineFactory.WRITE_BACK_WRITTEN),
+                @Option(label = "Listed written variables", value = RhinoJavaScriptEngineFactory.WRITE_BACK_LISTED),
+                @Option(label = "All variables", value = RhinoJavaScriptEngineFactory.WRITE_BACK_ALL)
+            })
+    String org_apache_sling_scripting_javascript_rhino_writeBack() default
+            RhinoJavaScriptEngineFactory.WRITE_BACK_WRITTEN;
+
+    @AttributeDefinition(
+            name = "Write-back names",
+            description =
+                    "The names of the variables copied back to the bindings if the variable write-back is limited to listed variables.")
+    String[] org_apache_sling_scripting_javascript_rhino_writeBack_names() default {};
+
+    @AttributeDefinition(
+            name = "Missing module retention",
+            description =
+                    "The number of seconds a module which could not be found in the search paths by require() is not looked up again, unless scripts are added in the meantime. A value of 0 disables remembering missing modules.")
+    int org_apache_sling_scripting_javascript_rhino_moduleResolution_negativeTtl() default 60;
+
+    @AttributeDefinition(
+            name = "Stale-while-revalidate",
+            description =
+                    "If enabled, the previously compiled version of a changed script keeps being served while the new version is compiled in the background. If the new version fails to compile, the error is logged and the previous version is served until the maximum staleness is exceeded.")
+    boolean org_apache_sling_scripting_javascript_rhino_staleWhileRevalidate() default false;
+
+    @AttributeDefinition(
+            name = "Maximum staleness",
+            description =
+                    "The number of seconds the previous version of a changed script may be served while the new version is compiled.")
+    int org_apache_sling_scripting_javascript_rhino_staleWhileRevalidate_maxStaleness() default 60;
+
+    @AttributeDefinition(
+            name = "Compiled script metaspace budget",
+            description =
+                    "The maximum total size in KB of the classes generated for the compiled scripts kept by the script engine. Once exceeded, the least recently used scripts are evicted, also from the script cache, such that their classes can be unloaded. A value of 0 disables the budget.")
+    int org_apache_sling_scripting_javascript_rhino_compiledScriptCache_budget() default 65536;
+
+    @AttributeDefinition(
+            name = "Coalesce ESP template text",
+            description =
+                    "If enabled, the template text of consecutive lines of an ESP script is written with a single out.write() call instead of one call per line. Line numbers in error messages are not affected.")
+    boolean org_apache_sling_scripting_javascript_rhino_esp_coalesceText() default false;
+
+    @AttributeDefinition(
+            name = "Transpiled ESP cache size",
+            description =
+                    "The maximum total size in KB of the scripts generated for ESP templates which are kept in memory, such that compiling an unchanged template again does not translate it again. A value of 0 disables the cache.")
+    int org_apache_sling_scripting_javascript_rhino_esp_sourceCache_size() default 4096;
+
+    @AttributeDefinition(
+            name = "Persistent transpiled ESP cache",
+            description =
+                    "If enabled, the scripts generated for ESP templates are also stored in the bundle's data area and reused after a restart.")
+    boolean org_apache_sling_scripting_javascript_rhino_esp_sourceCache_persistent() default false;
+
+    @AttributeDefinition(
+            name = "Persistent transpiled ESP cache size",
+            description =
+                    "The maximum total size in KB of the scripts generated for ESP templates which are stored in the bundle's data area. Once exceeded, the least recently used scripts are removed.")
+    int org_apache_sling_scripting_javascript_rhino_esp_sourceCache_persistent_size() default 65536;
+
+    @AttributeDefinition(
+            name = "ESP function size",
+            description =
+                    "The number of characters of the script generated for an ESP template after which the following statements are moved into a separate function, such that large templates can be compiled within the method size limit of the JVM, e.g. 16384. A value of 0 disables splitting templates.")
+    int org_apache_sling_scripting_javascript_rhino_esp_functionSize() default 0;
 }
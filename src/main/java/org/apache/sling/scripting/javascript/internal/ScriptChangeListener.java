@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.scripting.api.ScriptCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>ScriptChangeListener</code> evicts compiled scripts from the
+ * caches when resources below the search paths change. Besides the script
+ * at the changed path, all scripts which loaded or required it, directly or
+ * indirectly, are evicted as recorded by the {@link ScriptDependencies}.
+ * <p>
+ * If enabled, the previous versions of evicted scripts are kept as
+ * {@link StaleScripts} until they have been recompiled, unless the scripts
+ * have been removed.
+ */
+class ScriptChangeListener implements ResourceChangeListener {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ScriptCache scriptCache;
+
+    private final LoadedScriptCache loadedScriptCache;
+
+    private final ModuleResolutionCache moduleResolutionCache;
+
+    private final ScriptDependencies scriptDependencies;
+
+    private final StaleScripts staleScripts;
+
+    private final CompiledScriptCache compiledScriptCache;
+
+    ScriptChangeListener(
+            ScriptCache scriptCache,
+            LoadedScriptCache loadedScriptCache,
+            ModuleResolutionCache moduleResolutionCache,
+            ScriptDependencies scriptDependencies,
+            StaleScripts staleScripts,
+            CompiledScriptCache compiledScriptCache) {
+        this.scriptCache = scriptCache;
+        this.loadedScriptCache = loadedScriptCache;
+        this.moduleResolutionCache = moduleResolutionCache;
+        this.scriptDependencies = scriptDependencies;
+        this.staleScripts = staleScripts;
+        this.compiledScriptCache = compiledScriptCache;
+    }
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        for (ResourceChange change : changes) {
+            final String path = change.getPath();
+            switch (change.getType()) {
+                case ADDED:
+                    moduleResolutionCache.added(path);
+                    break;
+                case REMOVED:
+                    moduleResolutionCache.removed(path);
+                    break;
+                default:
+                    break;
+            }
+
+            Set<String> affected = scriptDependencies.invalidate(path);
+            for (String script : affected) {
+                if (scriptCache != null) {
+                    scriptCache.removeScript(script);
+                }
+                loadedScriptCache.invalidate(script);
+                if (compiledScriptCache != null) {
+                    compiledScriptCache.remove(script);
+                }
+                if (staleScripts != null) {
+                    if (change.getType() == ResourceChange.ChangeType.REMOVED
+                            && (script.equals(path) || script.startsWith(path + "/"))) {
+                        staleScripts.removed(script);
+                    } else {
+                        staleScripts.changed(script);
+                    }
+                }
+            }
+            log.debug("Evicted {} compiled scripts affected by {} of {}", affected.size(), change.getType(), path);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * The <code>ScriptDependencies</code> record which scripts loaded or
+ * required other scripts, such that all scripts affected by a modified
+ * resource can be evicted from the caches.
+ * <p>
+ * The dependencies are associated with the root scope of the script engine
+ * factory and may be retrieved from any scope with {@link #get(Scriptable)}.
+ */
+public final class ScriptDependencies {
+
+    private static final String KEY = ScriptDependencies.class.getName();
+
+    /** the scripts depending on a script by the path of the latter */
+    private final ConcurrentMap<String, Set<String>> dependents = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Returns the dependencies associated with the root scope of the given
+     * scope or <code>null</code> if there are none.
+     */
+    public static ScriptDependencies get(Scriptable scope) {
+        Object dependencies = ScriptableObject.getTopScopeValue(scope, KEY);
+        return (dependencies instanceof ScriptDependencies) ? (ScriptDependencies) dependencies : null;
+    }
+
+    /**
+     * Associates these dependencies with the given root scope.
+     */
+    void associate(ScriptableObject rootScope) {
+        rootScope.associateValue(KEY, this);
+    }
+
+    /**
+     * Records that the script loaded or required the dependency.
+     *
+     * @param script the path of the script
+     * @param dependency the path of the loaded or required script
+     */
+    public void record(String script, String dependency) {
+        if (script == null || dependency == null || script.equals(dependency)) {
+            return;
+        }
+        Set<String> scripts = dependents.get(dependency);
+        if (scripts == null) {
+            Set<String> newScripts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            scripts = dependents.putIfAbsent(dependency, newScripts);
+            if (scripts == null) {
+                scripts = newScripts;
+            }
+        }
+        scripts.add(script);
+    }
+
+    /**
+     * Forgets the dependencies of all scripts affected by a change of the
+     * resource at the given path and returns their paths. These are the
+     * path itself, any script with dependents below the path and all
+     * scripts depending on these, directly or indirectly.
+     */
+    Set<String> invalidate(String path) {
+        Deque<String> pending = new ArrayDeque<String>();
+        pending.add(path);
+        String prefix = path.endsWith("/") ? path : path + "/";
+        for (String dependency : dependents.keySet()) {
+            if (dependency.startsWith(prefix)) {
+                pending.add(dependency);
+            }
+        }
+
+        Set<String> affected = new LinkedHashSet<String>();
+        while (!pending.isEmpty()) {
+            String script = pending.poll();
+            if (affected.add(script)) {
+                Set<String> scripts = dependents.remove(script);
+                if (scripts != null) {
+                    pending.addAll(scripts);
+                }
+            }
+        }
+        return affected;
+    }
+
+    void clear() {
+        dependents.clear();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>ScriptUsageTracker</code> counts how often each script is
+ * executed and periodically writes the most frequently executed scripts to a
+ * local file. After a restart this "hot set" is compiled first by the
+ * {@link ScriptWarmUp}.
+ * <p>
+ * Counts read back from the file are halved, such that scripts which are no
+ * longer executed eventually drop out of the hot set.
+ */
+class ScriptUsageTracker {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final File file;
+
+    private final int maxSize;
+
+    private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+    private ScheduledExecutorService writer;
+
+    ScriptUsageTracker(File file, int maxSize) {
+        this.file = file;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Records an execution of the named script.
+     */
+    void record(String scriptName) {
+        AtomicLong count = counts.get(scriptName);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = counts.putIfAbsent(scriptName, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Reads the hot set written before the last shutdown and seeds the counts
+     * with it.
+     *
+     * @return the script paths of the hot set, most frequently executed first
+     */
+    List<String> load() {
+        if (!file.isFile()) {
+            return Collections.emptyList();
+        }
+
+        try (BufferedReader in =
+                new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    try {
+                        long count = Long.parseLong(line.substring(0, tab)) / 2;
+                        if (count > 0) {
+                            counts.putIfAbsent(line.substring(tab + 1), new AtomicLong(count));
+                        }
+                    } catch (NumberFormatException nfe) {
+                        log.debug("Ignoring invalid hot script entry {}", line);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            log.warn("Failed reading hot scripts from " + file, ioe);
+        }
+
+        return getHotScripts();
+    }
+
+    /**
+     * Returns the paths of the most frequently executed scripts, most
+     * frequently executed first.
+     */
+    List<String> getHotScripts() {
+        List<String> paths = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : snapshot()) {
+            paths.add(entry.getKey());
+        }
+        return paths;
+    }
+
+    /**
+     * Starts writing the hot set every <code>interval</code> seconds.
+     */
+    synchronized void start(int interval) {
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Rhino hot script writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, interval);
+        writer.scheduleWithFixedDelay(this::save, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic writes and writes the hot set a last time.
+     */
+    synchronized void stop() {
+        if (writer != null) {
+            writer.shutdownNow();
+            writer = null;
+        }
+        save();
+    }
+
+    /**
+     * Writes the current hot set to the file.
+     */
+    synchronized void save() {
+        List<Map.Entry<String, Long>> entries = snapshot();
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                log.warn("Cannot create directory for hot scripts {}", parent);
+                return;
+            }
+            try (BufferedWriter out =
+                    new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, Long> entry : entries) {
+                    out.write(String.valueOf(entry.getValue()));
+                    out.write('\t');
+                    out.write(entry.getKey());
+                    out.newLine();
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.debug("Wrote {} hot scripts to {}", entries.size(), file);
+        } catch (IOException ioe) {
+            log.warn("Failed writing hot scripts to " + file, ioe);
+        }
+    }
+
+    private List<Map.Entry<String, Long>> snapshot() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.size());
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            entries.add(new SimpleImmutableEntry<String, Long>(
+                    entry.getKey(), entry.getValue().get()));
+        }
+        entries.sort((e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+        return entries.size() > maxSize ? entries.subList(0, maxSize) : entries;
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.Compilable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.scripting.core.ScriptNameAwareReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>ScriptWarmUp</code> compiles all scripts found below the search
+ * paths of the resource resolver on a bounded pool of background threads,
+ * such that the first requests after activating the script engine factory
+ * don't have to pay for parsing and code generation.
+ * <p>
+ * The resource tree is walked by a single thread which reads the script
+ * sources and hands them over to the compiling threads, since a resource
+ * resolver must not be shared between threads. The scanner only reads a few
+ * scripts ahead of the compiling threads, such that the sources of a large
+ * repository are not all held in memory at once.
+ * <p>
+ * Scripts known to be executed frequently (see {@link ScriptUsageTracker})
+ * are compiled first in the given order. Walking the search paths for all
+ * other scripts may be disabled to only warm up these hot scripts.
+ */
+class ScriptWarmUp implements ScriptWarmUpMBean {
+
+    static final String STATE_SCANNING = "SCANNING";
+
+    static final String STATE_COMPILING = "COMPILING";
+
+    static final String STATE_DONE = "DONE";
+
+    static final String STATE_STOPPED = "STOPPED";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ScriptEngineFactory engineFactory;
+
+    private final ResourceResolverFactory resourceResolverFactory;
+
+    private final Pattern[] includes;
+
+    private final Pattern[] excludes;
+
+    private final List<String> hotScripts;
+
+    private final boolean scanSearchPaths;
+
+    private final ExecutorService compilers;
+
+    /** Limits the scripts read but not compiled yet */
+    private final Semaphore pendingScripts;
+
+    private final AtomicInteger totalScripts = new AtomicInteger();
+
+    private final AtomicInteger compiledScripts = new AtomicInteger();
+
+    private final AtomicInteger failedScripts = new AtomicInteger();
+
+    private volatile String state = STATE_SCANNING;
+
+    private volatile long startTime;
+
+    private volatile long endTime;
+
+    private volatile Thread scanner;
+
+    ScriptWarmUp(
+            ScriptEngineFactory engineFactory,
+            ResourceResolverFactory resourceResolverFactory,
+            String[] includes,
+            String[] excludes,
+            int threads,
+            List<String> hotScripts,
+            boolean scanSearchPaths) {
+        this.engineFactory = engineFactory;
+        this.resourceResolverFactory = resourceResolverFactory;
+        this.includes = compile(includes);
+        this.excludes = compile(excludes);
+        this.hotScripts = hotScripts;
+        this.scanSearchPaths = scanSearchPaths;
+        this.pendingScripts = new Semaphore(3 * Math.max(1, threads));
+        this.compilers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Rhino script warm-up #" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts walking the search paths on a separate thread and returns
+     * immediately.
+     */
+    void start() {
+        startTime = System.currentTimeMillis();
+        Thread thread = new Thread(this::scan, "Rhino script warm-up scanner");
+        thread.setDaemon(true);
+        scanner = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the warm-up, abandoning all scripts not compiled yet.
+     */
+    void stop() {
+        Thread thread = scanner;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        compilers.shutdownNow();
+        if (!isReady()) {
+            finish(STATE_STOPPED);
+        }
+    }
+
+    // ---------- ScriptWarmUpMBean
+
+    @Override
+    public String getState() {
+        return state;
+    }
+
+    @Override
+    public boolean isReady() {
+        return STATE_DONE.equals(state) || STATE_STOPPED.equals(state);
+    }
+
+    @Override
+    public int getTotalScripts() {
+        return totalScripts.get();
+    }
+
+    @Override
+    public int getCompiledScripts() {
+        return compiledScripts.get();
+    }
+
+    @Override
+    public int getFailedScripts() {
+        return failedScripts.get();
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (isReady() ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    @Override
+    public long getEstimatedRemainingMillis() {
+        if (isReady()) {
+            return 0;
+        }
+        int done = compiledScripts.get() + failedScripts.get();
+        if (done == 0 || STATE_SCANNING.equals(state)) {
+            return -1;
+        }
+        return getElapsedMillis() * (totalScripts.get() - done) / done;
+    }
+
+    // ---------- internal
+
+    private void scan() {
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getServiceResourceResolver(null);
+            Set<String> submitted = new HashSet<String>();
+            for (String path : hotScripts) {
+                Resource resource = resolver.getResource(path);
+                if (resource != null && isScript(path) && submitted.add(path)) {
+                    submit(resource);
+                }
+            }
+            if (scanSearchPaths) {
+                for (String searchPath : resolver.getSearchPath()) {
+                    Resource root = resolver.getResource(searchPath);
+                    if (root != null) {
+                        scan(root, submitted);
+                    }
+                }
+            }
+        } catch (LoginException le) {
+            log.warn("Cannot warm up scripts, no service resource resolver available: {}", le.getMessage());
+        } catch (RuntimeException re) {
+            log.warn("Unexpected failure scanning for scripts to warm up", re);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+            scanner = null;
+        }
+
+        synchronized (this) {
+            if (isReady()) {
+                // stopped while scanning
+                return;
+            }
+            state = STATE_COMPILING;
+        }
+
+        log.info("Found {} scripts to warm up", totalScripts.get());
+        try {
+            // completes the warm-up if there is nothing to compile
+            compilers.execute(this::checkDone);
+            compilers.shutdown();
+        } catch (RejectedExecutionException ree) {
+            // stopped in the meantime
+        }
+    }
+
+    private void scan(Resource root, Set<String> submitted) {
+        Deque<Resource> pending = new ArrayDeque<Resource>();
+        pending.push(root);
+        while (!pending.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            Resource resource = pending.pop();
+            if (isScript(resource.getPath()) && !submitted.contains(resource.getPath())) {
+                submit(resource);
+            }
+            for (Iterator<Resource> children = resource.listChildren(); children.hasNext(); ) {
+                pending.push(children.next());
+            }
+        }
+    }
+
+    private void submit(Resource resource) {
+        // wait for the compiling threads to catch up
+        try {
+            pendingScripts.acquire();
+        } catch (InterruptedException ie) {
+            // stopped in the meantime
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        boolean submitted = false;
+        try {
+            final String path = resource.getPath();
+            final String source;
+            InputStream ins = resource.adaptTo(InputStream.class);
+            if (ins == null) {
+                return;
+            }
+            try {
+                source = IOUtils.toString(ins, StandardCharsets.UTF_8);
+            } catch (IOException ioe) {
+                log.debug("Cannot read script {} for warm-up: {}", path, ioe.getMessage());
+                return;
+            } finally {
+                IOUtils.closeQuietly(ins);
+            }
+
+            compilers.execute(() -> compile(path, source));
+            totalScripts.incrementAndGet();
+            submitted = true;
+        } catch (RejectedExecutionException ree) {
+            // stopped in the meantime
+        } finally {
+            if (!submitted) {
+                pendingScripts.release();
+            }
+        }
+    }
+
+    private void compile(String path, String source) {
+        try {
+            ScriptEngine engine = engineFactory.getScriptEngine();
+            if (engine == null) {
+                // factory has been deactivated in the meantime
+                return;
+            }
+            ((Compilable) engine).compile(new ScriptNameAwareReader(new StringReader(source), path));
+            compiledScripts.incrementAndGet();
+            log.debug("Warmed up script {}", path);
+        } catch (Exception e) {
+            failedScripts.incrementAndGet();
+            log.debug("Failed warming up script {}: {}", path, e.getMessage());
+        } finally {
+            pendingScripts.release();
+        }
+        checkDone();
+    }
+
+    private void checkDone() {
+        if (STATE_COMPILING.equals(state) && compiledScripts.get() + failedScripts.get() >= totalScripts.get()) {
+            synchronized (this) {
+                if (STATE_COMPILING.equals(state)) {
+                    finish(STATE_DONE);
+                    log.info(
+                            "Warmed up {} scripts ({} failed) in {}ms",
+                            compiledScripts.get(),
+                            failedScripts.get(),
+                            getElapsedMillis());
+                }
+            }
+        }
+    }
+
+    private synchronized void finish(String finalState) {
+        endTime = System.currentTimeMillis();
+        state = finalState;
+    }
+
+    boolean isScript(String path) {
+        List<String> extensions = engineFactory.getExtensions();
+        boolean script = false;
+        for (String extension : extensions) {
+            if (path.endsWith("." + extension)) {
+                script = true;
+                break;
+            }
+        }
+        if (!script || !matchesAny(includes, path, true)) {
+            return false;
+        }
+        return !matchesAny(excludes, path, false);
+    }
+
+    /**
+     * Waits for the warm-up to be ready, mainly for testing purposes.
+     */
+    boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!isReady()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static boolean matchesAny(Pattern[] patterns, String path, boolean emptyResult) {
+        if (patterns.length == 0) {
+            return emptyResult;
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern[] compile(String[] patterns) {
+        if (patterns == null) {
+            return new Pattern[0];
+        }
+        int count = 0;
+        Pattern[] compiled = new Pattern[patterns.length];
+        for (String pattern : patterns) {
+            if (pattern != null && pattern.trim().length() > 0) {
+                compiled[count++] = Pattern.compile(pattern.trim());
+            }
+        }
+        Pattern[] result = new Pattern[count];
+        System.arraycopy(compiled, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+/**
+ * The <code>ScriptWarmUpMBean</code> exposes the progress of the background
+ * compilation of scripts started when the script engine factory is activated.
+ */
+public interface ScriptWarmUpMBean {
+
+    /**
+     * Returns the current state of the warm-up, one of <em>SCANNING</em>,
+     * <em>COMPILING</em>, <em>DONE</em> or <em>STOPPED</em>.
+     */
+    String getState();
+
+    /**
+     * Returns <code>true</code> once all scripts found have been compiled or
+     * the warm-up has been stopped.
+     */
+    boolean isReady();
+
+    /**
+     * Returns the number of scripts found to be compiled. This number may
+     * still grow while the state is <em>SCANNING</em>.
+     */
+    int getTotalScripts();
+
+    /**
+     * Returns the number of scripts successfully compiled.
+     */
+    int getCompiledScripts();
+
+    /**
+     * Returns the number of scripts which failed to compile.
+     */
+    int getFailedScripts();
+
+    /**
+     * Returns the number of milliseconds since the warm-up has been started
+     * or the total duration once it is ready.
+     */
+    long getElapsedMillis();
+
+    /**
+     * Returns the estimated number of milliseconds until all scripts are
+     * compiled or -1 if no estimate is available yet.
+     */
+    long getEstimatedRemainingMillis();
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.sling.scripting.javascript.io.EspTranspiler;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.LetNode;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.VariableDeclaration;
+import org.mozilla.javascript.ast.VariableInitializer;
+
+/**
+ * The <code>SplittingEspTranspiler</code> splits the scripts generated for
+ * large ESP templates into several functions, such that each of them is
+ * compiled to a method within the size limits of the JVM and small enough to
+ * be optimized by the JIT compiler.
+ * <p>
+ * The top level statements of the script are grouped into chunks of about
+ * the maximum function length, each of which is wrapped into a function
+ * called right away with the same <code>this</code>:
+ * <code>;(function(){ ... }).call(this);</code>. Top level variables are
+ * declared at the start of the script and their declarations within the
+ * chunks become assignments, function declarations are kept at the top level.
+ * No line breaks are added such that the line numbers still match the
+ * template.
+ * <p>
+ * Scripts whose meaning might change by moving statements into a function
+ * are not split: scripts in strict mode or using <code>let</code>,
+ * <code>const</code>, destructuring declarations, nested function
+ * declarations, <code>eval</code> or <code>arguments</code> outside of
+ * functions. Scripts which cannot be parsed are not split either, such that
+ * compiling them reports the error for the original script.
+ */
+class SplittingEspTranspiler extends EspTranspiler {
+
+    private static final String CHUNK_START = ";(function(){";
+
+    private static final String CHUNK_END = "}).call(this);";
+
+    private final int maxFunctionLength;
+
+    /**
+     * @param maxFunctionLength the number of characters of the generated
+     *            script after which statements are moved to the next
+     *            function, 0 to never split scripts
+     */
+    SplittingEspTranspiler(int maxFunctionLength) {
+        this.maxFunctionLength = maxFunctionLength;
+    }
+
+    int getMaxFunctionLength() {
+        return maxFunctionLength;
+    }
+
+    @Override
+    public String transpile(Reader template) throws IOException {
+        final String script = super.transpile(template);
+        return (maxFunctionLength > 0) ? split(script, maxFunctionLength) : script;
+    }
+
+    /**
+     * Returns the script split into functions of about the given length or
+     * the script itself if it is not larger or cannot be split.
+     */
+    static String split(String script, int maxFunctionLength) {
+        if (script.length() <= maxFunctionLength) {
+            return script;
+        }
+
+        final AstRoot root;
+        try {
+            CompilerEnvirons compilerEnv = new CompilerEnvirons();
+            compilerEnv.setLanguageVersion(RhinoJavaScriptEngineFactory.RHINO_LANGUAGE_VERSION);
+            root = new Parser(compilerEnv).parse(script, null, 1);
+        } catch (RhinoException re) {
+            return script;
+        }
+
+        final TopLevelScan scan = new TopLevelScan();
+        root.visit(scan);
+        if (!scan.splittable || root.isInStrictMode()) {
+            return script;
+        }
+        for (int varPosition : scan.varPositions) {
+            if (!script.startsWith("var", varPosition)) {
+                return script;
+            }
+        }
+
+        // the insertions at ascending positions
+        final List<Integer> positions = new ArrayList<Integer>();
+        final List<String> insertions = new ArrayList<String>();
+        int chunkStart = -1;
+        int chunkEnd = -1;
+        for (Node node : root) {
+            final AstNode statement = (AstNode) node;
+            final int start = statement.getAbsolutePosition();
+            if (isFunctionDeclaration(statement)) {
+                // function declarations are kept at the top level
+                if (chunkStart >= 0) {
+                    insert(positions, insertions, chunkStart, CHUNK_START);
+                    insert(positions, insertions, chunkEnd, CHUNK_END);
+                    chunkStart = -1;
+                }
+                continue;
+            }
+            if (chunkStart < 0) {
+                chunkStart = start;
+            } else if (start + statement.getLength() - chunkStart > maxFunctionLength) {
+                insert(positions, insertions, chunkStart, CHUNK_START);
+                insert(positions, insertions, chunkEnd, CHUNK_END);
+                chunkStart = start;
+            }
+            chunkEnd = start + statement.getLength();
+        }
+        if (chunkStart >= 0) {
+            insert(positions, insertions, chunkStart, CHUNK_START);
+            insert(positions, insertions, chunkEnd, CHUNK_END);
+        }
+        if (positions.size() <= 2) {
+            // a single chunk gains nothing
+            return script;
+        }
+
+        final StringBuilder split = new StringBuilder(script.length() + 32 * positions.size());
+        if (!scan.variables.isEmpty()) {
+            split.append("var ");
+            String separator = "";
+            for (String variable : scan.variables) {
+                split.append(separator).append(variable);
+                separator = ",";
+            }
+            split.append(';');
+        }
+
+        // blank the var keywords, which are not moved by the insertions
+        final char[] chars = script.toCharArray();
+        for (int varPosition : scan.varPositions) {
+            chars[varPosition] = ' ';
+            chars[varPosition + 1] = ' ';
+            chars[varPosition + 2] = ' ';
+        }
+        int copied = 0;
+        for (int i = 0; i < positions.size(); i++) {
+            final int position = positions.get(i);
+            split.append(chars, copied, position - copied).append(insertions.get(i));
+            copied = position;
+        }
+        split.append(chars, copied, chars.length - copied);
+        return split.toString();
+    }
+
+    private static void insert(List<Integer> positions, List<String> insertions, int position, String text) {
+        positions.add(position);
+        insertions.add(text);
+    }
+
+    private static boolean isFunctionDeclaration(AstNode node) {
+        return node instanceof FunctionNode
+                && ((FunctionNode) node).getFunctionType() == FunctionNode.FUNCTION_STATEMENT;
+    }
+
+    /**
+     * Collects the variables declared outside of functions and checks
+     * whether the script may be split.
+     */
+    private static class TopLevelScan implements NodeVisitor {
+
+        private final Set<String> variables = new LinkedHashSet<String>();
+
+        private final List<Integer> varPositions = new ArrayList<Integer>();
+
+        private boolean splittable = true;
+
+        @Override
+        public boolean visit(AstNode node) {
+            if (!splittable) {
+                return false;
+            }
+
+            if (node instanceof FunctionNode) {
+                // only function declarations at the top level stay in place
+                if (((FunctionNode) node).getFunctionType() != FunctionNode.FUNCTION_EXPRESSION
+                        && !(node.getParent() instanceof AstRoot)) {
+                    splittable = false;
+                }
+                return false;
+            } else if (node instanceof LetNode) {
+                splittable = false;
+            } else if (node instanceof VariableDeclaration) {
+                final VariableDeclaration declaration = (VariableDeclaration) node;
+                if (!declaration.isVar()) {
+                    splittable = false;
+                    return false;
+                }
+                for (VariableInitializer initializer : declaration.getVariables()) {
+                    if (!(initializer.getTarget() instanceof Name)) {
+                        splittable = false;
+                        return false;
+                    }
+                    variables.add(((Name) initializer.getTarget()).getIdentifier());
+                }
+                varPositions.add(declaration.getAbsolutePosition());
+            } else if (node instanceof Name) {
+                final String identifier = ((Name) node).getIdentifier();
+                if ("eval".equals(identifier) || "arguments".equals(identifier)) {
+                    splittable = false;
+                }
+            }
+            return true;
+        }
+    }
+}
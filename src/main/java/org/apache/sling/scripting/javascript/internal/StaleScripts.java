@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>StaleScripts</code> keep serving the previously compiled version
+ * of a changed script while the new source is compiled in the background
+ * (stale-while-revalidate). Once the compilation succeeds the new version
+ * replaces the old one in the script cache. If it fails, the error is logged
+ * and the old version is served until the maximum staleness is exceeded,
+ * after which requests compile the script themselves and fail with the
+ * compilation error.
+ * <p>
+ * The last compiled version of each script is only softly referenced, such
+ * that scripts evicted from the script cache may still be reclaimed.
+ */
+class StaleScripts {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final long maxStaleness;
+
+    private final Executor executor;
+
+    private final AtomicLong staleCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * @param maxStaleness the number of milliseconds a changed script may be
+     *            served in its previous version
+     * @param executor the executor running the background compilations
+     */
+    StaleScripts(long maxStaleness, Executor executor) {
+        this.maxStaleness = maxStaleness;
+        this.executor = executor;
+    }
+
+    /**
+     * Records the current compiled version of the named script.
+     */
+    void compiled(String scriptName, CompiledScript compiledScript) {
+        entries.put(scriptName, new Entry(compiledScript));
+    }
+
+    /**
+     * Marks the named script as changed, such that its compiled version is
+     * only served while it is being recompiled.
+     */
+    void changed(String scriptName) {
+        Entry entry = entries.get(scriptName);
+        if (entry != null && entry.changed == 0) {
+            entry.changed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Forgets the named script, which is not to be served anymore.
+     */
+    void removed(String scriptName) {
+        entries.remove(scriptName);
+    }
+
+    /**
+     * Returns the previous version of the named changed script or
+     * <code>null</code> if the script has not been changed, its previous
+     * version is not available anymore or has been stale for too long.
+     */
+    CompiledScript getStale(String scriptName) {
+        Entry entry = entries.get(scriptName);
+        if (entry == null || entry.changed == 0) {
+            return null;
+        }
+        CompiledScript compiledScript = entry.compiledScript.get();
+        if (compiledScript == null || System.currentTimeMillis() - entry.changed > maxStaleness) {
+            entries.remove(scriptName, entry);
+            return null;
+        }
+        staleCount.incrementAndGet();
+        return compiledScript;
+    }
+
+    /**
+     * Compiles the new source of the named script in the background unless
+     * a compilation is already running or the same source already failed to
+     * compile.
+     */
+    void revalidate(final String scriptName, final String source, final InFlightCompilations.Compilation compilation) {
+        final Entry entry = entries.get(scriptName);
+        if (entry == null || source.equals(entry.failedSource) || !entry.revalidating.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    // replaces the entry on success
+                    compilation.compile();
+                    log.debug("Recompiled changed script {}", scriptName);
+                } catch (ScriptException | RuntimeException e) {
+                    failureCount.incrementAndGet();
+                    entry.failedSource = source;
+                    log.error(
+                            "Failed recompiling changed script " + scriptName
+                                    + ", serving the previous version for at most " + maxStaleness + "ms",
+                            e);
+                } finally {
+                    entry.revalidating.set(false);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // deactivated in the meantime
+            entry.revalidating.set(false);
+        }
+    }
+
+    /**
+     * Returns the number of times a previous version of a script has been
+     * served.
+     */
+    long getStaleCount() {
+        return staleCount.get();
+    }
+
+    /**
+     * Returns the number of failed background compilations.
+     */
+    long getFailureCount() {
+        return failureCount.get();
+    }
+
+    private static class Entry {
+
+        private final SoftReference<CompiledScript> compiledScript;
+
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        private volatile long changed;
+
+        private volatile String failedSource;
+
+        Entry(CompiledScript compiledScript) {
+            this.compiledScript = new SoftReference<CompiledScript>(compiledScript);
+        }
+    }
+}
@@ -57,6 +57,9 @@ import org.slf4j.LoggerFactory;
  * on one of the simpler Readers. The reasons for this is, that we call the base
  * reader character by character. This in turn is not too performing if the base
  * reader does not buffer its input.
+ * <p>
+ * The script engine uses the {@link EspTranspiler} instead, which generates
+ * the same script translating the complete template at once.
  */
 public class EspReader extends FilterReader {
 
@@ -0,0 +1,592 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * The <code>EspTranspiler</code> translates JSP like ESP templates into plain
+ * ECMA script exactly like the {@link EspReader} does, but processes the
+ * whole template at once: the source is read in blocks, scanned by index and
+ * the generated script is appended to a single buffer, copying runs of plain
+ * characters in bulk instead of passing each character through a state
+ * machine and a pushback reader.
+ * <p>
+ * The generated script is the same as produced by the <code>EspReader</code>,
+ * including the line numbers matching the template. The only difference is
+ * at the very end of the template: where the <code>EspReader</code> looks
+ * ahead beyond the end of the input, e.g. for a template ending with
+ * <code>$</code>, <code>&lt;</code> or <code>\r</code>, it injects
+ * <code>U+FFFF</code> characters into the script, which the transpiler does
+ * not.
+ * <p>
+ * In addition the transpiler may coalesce the template text of consecutive
+ * lines into a single <code>out.write()</code> call, see
+ * {@link #setCoalesceText(boolean)}.
+ * <p>
+ * Once configured, an instance may be used for any number of concurrent
+ * translations.
+ */
+public class EspTranspiler {
+
+    /** The size of the blocks in which the template is read */
+    private static final int BLOCK_SIZE = 8192;
+
+    private static final int STATE_ESP = 1;
+
+    private static final int STATE_ECMA = 2;
+
+    private static final int STATE_ECMA_EXPR = 3;
+
+    private static final int STATE_ECMA_EXPR_COMPACT = 4;
+
+    private static final int STATE_JSP_COMMENT = 5;
+
+    private static final int STATE_QUOTE = 6;
+
+    private static final int STATE_ECMA_COMMENT = 7;
+
+    private static final int STATE_ECMA_COMMENTL = 8;
+
+    /** No <code>out.write()</code> call is open */
+    private static final int TEXT_NONE = 0;
+
+    /** The string literal of an <code>out.write()</code> call is open */
+    private static final int TEXT_LITERAL = 1;
+
+    /**
+     * An <code>out.write()</code> call is open, which may be continued by
+     * concatenating another string literal
+     */
+    private static final int TEXT_CALL = 2;
+
+    /**
+     * The maximum number of lines coalesced into a single write. Rhino folds
+     * the concatenated literals recursively, so the depth must be bounded.
+     */
+    static final int MAX_COALESCED_LINES = 256;
+
+    /**
+     * The number of characters after which no more lines are coalesced into
+     * a write, such that the folded literal usually still fits into a single
+     * constant of the generated class.
+     */
+    static final int MAX_COALESCED_LENGTH = 16384;
+
+    private String outInitStatement = EspReader.DEFAULT_OUT_INIT_STATEMENT;
+
+    private boolean coalesceText;
+
+    /**
+     * Set the code fragment used to initialize the "out" variable
+     *
+     * @param statement the statement used for initialization
+     */
+    public void setOutInitStatement(String statement) {
+        outInitStatement = statement;
+    }
+
+    /**
+     * Returns the code fragment used to initialize the "out" variable
+     */
+    public String getOutInitStatement() {
+        return outInitStatement;
+    }
+
+    /**
+     * Sets whether the template text of consecutive lines is written by a
+     * single <code>out.write()</code> call instead of one call per line. The
+     * lines are concatenated string literals, which Rhino folds into a single
+     * string when compiling the script, such that the line numbers still
+     * match the template. Only very large blocks of text are split into
+     * several calls.
+     *
+     * @param coalesceText whether to coalesce the lines of template text
+     */
+    public void setCoalesceText(boolean coalesceText) {
+        this.coalesceText = coalesceText;
+    }
+
+    /**
+     * Returns whether the template text of consecutive lines is coalesced
+     * into a single <code>out.write()</code> call.
+     */
+    public boolean isCoalesceText() {
+        return coalesceText;
+    }
+
+    /**
+     * Reads the template from the reader and returns the generated script.
+     * The reader is read to its end but not closed.
+     *
+     * @param template the reader providing the ESP template
+     * @return the generated ECMA script
+     * @throws IOException if reading the template fails
+     */
+    public String transpile(Reader template) throws IOException {
+        char[] source = new char[BLOCK_SIZE];
+        int length = 0;
+        for (int read; (read = template.read(source, length, source.length - length)) >= 0; ) {
+            length += read;
+            if (length == source.length) {
+                source = Arrays.copyOf(source, source.length * 2);
+            }
+        }
+        return new Translation(source, length, outInitStatement, coalesceText).run();
+    }
+
+    /**
+     * Returns a reader providing the script generated for the template read
+     * from the given reader. This is a drop-in replacement for the
+     * {@link EspReader}; the template is transpiled on the first read.
+     *
+     * @param template the reader providing the ESP template
+     * @return the reader providing the generated ECMA script
+     */
+    public Reader transpilingReader(Reader template) {
+        return new TranspilingReader(template);
+    }
+
+    /**
+     * The translation of a single template.
+     */
+    private static final class Translation {
+
+        private final char[] source;
+
+        private final int length;
+
+        private final String outInitStatement;
+
+        private final boolean coalesceText;
+
+        private final StringBuilder script;
+
+        private int pos;
+
+        private int state = STATE_ESP;
+
+        private int[] stateStack = new int[4];
+
+        private int stackDepth;
+
+        /** The state of writing template text, one of the TEXT_* constants */
+        private int text = TEXT_NONE;
+
+        /** The length of the script where the current write started */
+        private int writeStart;
+
+        /** The number of lines coalesced into the current write */
+        private int writeLines;
+
+        private boolean outUndefined = true;
+
+        private char quoteChar;
+
+        private boolean escape;
+
+        Translation(char[] source, int length, String outInitStatement, boolean coalesceText) {
+            this.source = source;
+            this.length = length;
+            this.outInitStatement = outInitStatement;
+            this.coalesceText = coalesceText;
+            this.script = new StringBuilder(length + (length >> 2) + 64);
+        }
+
+        String run() {
+            while (pos < length) {
+                switch (state) {
+                    case STATE_ESP:
+                        esp();
+                        break;
+                    case STATE_ECMA:
+                    case STATE_ECMA_EXPR:
+                        ecma();
+                        break;
+                    case STATE_ECMA_EXPR_COMPACT:
+                        compactExpression();
+                        break;
+                    case STATE_JSP_COMMENT:
+                        jspComment();
+                        break;
+                    case STATE_QUOTE:
+                        quote();
+                        break;
+                    case STATE_ECMA_COMMENT:
+                        ecmaComment();
+                        break;
+                    default:
+                        ecmaLineComment();
+                        break;
+                }
+            }
+
+            // terminate an incomplete template text write
+            if (state == STATE_ESP) {
+                endWrite();
+            }
+            return script.toString();
+        }
+
+        /**
+         * Template text is wrapped in <code>out.write()</code> calls, at most
+         * one line per call.
+         */
+        private void esp() {
+            final char c = source[pos];
+            if (c == '$' && peek(1) == '{') {
+                // ECMA expression ${ ... }
+                pos += 2;
+                pushState(STATE_ECMA_EXPR_COMPACT);
+                startExpression();
+                return;
+            } else if (c == '<' && peek(1) == '%') {
+                final int c3 = peek(2);
+                if (c3 == '=') {
+                    // ECMA expression <%= ... %>
+                    pos += 3;
+                    pushState(STATE_ECMA_EXPR);
+                    startExpression();
+                    return;
+                } else if (c3 == '-' && peek(3) == '-') {
+                    // JSP comment <%-- ... --%>
+                    pos += 4;
+                    pushState(STATE_JSP_COMMENT);
+                    return;
+                }
+
+                // ECMA code <% ... %>
+                pos += 2;
+                pushState(STATE_ECMA);
+                endWrite();
+                return;
+            } else if (c == '\r' || c == '\n') {
+                final String lineEnd;
+                if (c == '\n') {
+                    lineEnd = "\\n";
+                    pos++;
+                } else if (peek(1) == '\n') {
+                    lineEnd = "\\r\\n";
+                    pos += 2;
+                } else {
+                    lineEnd = "\\r";
+                    pos++;
+                }
+
+                // an empty line still writes the line ending
+                startLiteral();
+                script.append(lineEnd);
+                if (coalesceText
+                        && writeLines < MAX_COALESCED_LINES
+                        && script.length() - writeStart < MAX_COALESCED_LENGTH) {
+                    // continue the write on the next line
+                    script.append("\"\n");
+                    text = TEXT_CALL;
+                    writeLines++;
+                } else {
+                    script.append("\");\n");
+                    text = TEXT_NONE;
+                }
+                return;
+            }
+
+            startLiteral();
+
+            // copy the text up to the next character possibly starting a
+            // tag, an expression or a new line, the current character is
+            // known to be plain text
+            final int first = pos;
+            int start = pos;
+            do {
+                final char ch = source[pos];
+                if (ch == '"' || ch == '\\') {
+                    script.append(source, start, pos - start).append('\\').append(ch);
+                    start = pos + 1;
+                } else if (pos > first && (ch == '$' || ch == '<' || ch == '\r' || ch == '\n')) {
+                    break;
+                }
+                pos++;
+            } while (pos < length);
+            script.append(source, start, pos - start);
+        }
+
+        /**
+         * ECMA code and expressions are copied as is up to the closing
+         * <code>%&gt;</code> outside of strings and comments.
+         */
+        private void ecma() {
+            final char c = source[pos];
+            if (c == '%' && peek(1) == '>') {
+                pos += 2;
+                // an expression is wrapped in out.write()
+                if (popState() == STATE_ECMA_EXPR) {
+                    script.append(");");
+                }
+                text = TEXT_NONE;
+                return;
+            } else if (c == '/') {
+                final int c2 = peek(1);
+                if (c2 == '/') {
+                    pushState(STATE_ECMA_COMMENTL);
+                } else if (c2 == '*') {
+                    pushState(STATE_ECMA_COMMENT);
+                }
+                script.append(c);
+                pos++;
+                return;
+            } else if (c == '\'' || c == '"') {
+                escape = false;
+                quoteChar = c;
+                pushState(STATE_QUOTE);
+                script.append(c);
+                pos++;
+                return;
+            }
+
+            copyUntil('%', '/', '\'', '"');
+        }
+
+        /**
+         * A compact expression is copied up to the first closing brace.
+         */
+        private void compactExpression() {
+            if (source[pos] == '}') {
+                pos++;
+                popState();
+                script.append(");");
+                text = TEXT_NONE;
+                return;
+            }
+
+            copyUntil('}', '}', '}', '}');
+        }
+
+        /**
+         * JSP comments are removed except for their line endings.
+         */
+        private void jspComment() {
+            final char c = source[pos];
+            if (c == '-') {
+                if (peek(1) == '-' && peek(2) == '%' && peek(3) == '>') {
+                    pos += 4;
+                    popState();
+                    return;
+                }
+            } else if (c == '\r' || c == '\n') {
+                // terminate an open template line
+                if (text == TEXT_LITERAL) {
+                    if (coalesceText) {
+                        script.append('"');
+                        text = TEXT_CALL;
+                    } else {
+                        script.append("\");");
+                        text = TEXT_NONE;
+                    }
+                }
+                script.append(c);
+            }
+            pos++;
+        }
+
+        /**
+         * Strings in ECMA code are copied up to the unescaped closing quote.
+         */
+        private void quote() {
+            final int start = pos;
+            while (pos < length) {
+                final char c = source[pos++];
+                if (escape) {
+                    escape = false;
+                } else if (c == '\\') {
+                    escape = true;
+                } else if (c == quoteChar) {
+                    popState();
+                    break;
+                }
+            }
+            script.append(source, start, pos - start);
+        }
+
+        /**
+         * Slash star comments are copied up to the closing star slash.
+         */
+        private void ecmaComment() {
+            if (source[pos] == '*' && peek(1) == '/') {
+                pos += 2;
+                popState();
+                script.append("*/");
+                return;
+            }
+
+            copyUntil('*', '*', '*', '*');
+        }
+
+        /**
+         * Slash slash comments are copied up to the end of the line, whose
+         * line feed is left to the enclosing ECMA code.
+         */
+        private void ecmaLineComment() {
+            final char c = source[pos];
+            if (c == '\n' || (c == '\r' && peek(1) == '\n')) {
+                popState();
+                script.append(c);
+                pos++;
+                return;
+            }
+
+            copyUntil('\r', '\n', '\n', '\n');
+        }
+
+        /**
+         * Copies the current character, which is known not to be handled
+         * specially, and all following characters up to the next of the
+         * given characters.
+         */
+        private void copyUntil(char s1, char s2, char s3, char s4) {
+            final int start = pos++;
+            while (pos < length) {
+                final char c = source[pos];
+                if (c == s1 || c == s2 || c == s3 || c == s4) {
+                    break;
+                }
+                pos++;
+            }
+            script.append(source, start, pos - start);
+        }
+
+        /**
+         * Writes the call to write template text, defining the global
+         * <em>out</em> variable first if needed.
+         */
+        private void startWrite() {
+            if (outUndefined) {
+                script.append(outInitStatement);
+                outUndefined = false;
+            }
+            script.append("out.write(");
+        }
+
+        /**
+         * Opens the string literal for template text, starting a new write
+         * or continuing the open one.
+         */
+        private void startLiteral() {
+            if (text == TEXT_NONE) {
+                writeStart = script.length();
+                writeLines = 0;
+                startWrite();
+                script.append('"');
+            } else if (text == TEXT_CALL) {
+                script.append("+\"");
+            }
+            text = TEXT_LITERAL;
+        }
+
+        /**
+         * Terminates an open template text write.
+         */
+        private void endWrite() {
+            if (text == TEXT_LITERAL) {
+                script.append("\");");
+            } else if (text == TEXT_CALL) {
+                script.append(");");
+            }
+            text = TEXT_NONE;
+        }
+
+        /**
+         * Terminates an open template text write and starts the call writing
+         * an expression.
+         */
+        private void startExpression() {
+            endWrite();
+            startWrite();
+        }
+
+        private int peek(int offset) {
+            final int index = pos + offset;
+            return (index < length) ? source[index] : -1;
+        }
+
+        private void pushState(int newState) {
+            if (stackDepth == stateStack.length) {
+                stateStack = Arrays.copyOf(stateStack, stackDepth * 2);
+            }
+            stateStack[stackDepth++] = state;
+            state = newState;
+        }
+
+        private int popState() {
+            final int oldState = state;
+            state = (stackDepth == 0) ? STATE_ESP : stateStack[--stackDepth];
+            return oldState;
+        }
+    }
+
+    /**
+     * The reader transpiling the template on the first read.
+     */
+    private final class TranspilingReader extends Reader {
+
+        private Reader template;
+
+        private Reader script;
+
+        TranspilingReader(Reader template) {
+            this.template = template;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return script().read(cbuf, off, len);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return script().read();
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            return script().ready();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (template != null) {
+                template.close();
+                template = null;
+            }
+            script = null;
+        }
+
+        private Reader script() throws IOException {
+            if (script == null) {
+                if (template == null) {
+                    throw new IOException("Reader is closed");
+                }
+                script = new StringReader(transpile(template));
+            }
+            return script;
+        }
+    }
+}
@@ -64,6 +64,12 @@ public class ScriptablePrintWriter extends ScriptableObject implements SlingWrap
     // print args to writer if any
     // this method supports write(Object)
     public static void jsFunction_write(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        // fast path for the template text of ESP scripts, which is always
+        // written as a single string constant
+        if (args.length == 1 && args[0] instanceof String) {
+            ((ScriptablePrintWriter) thisObj).writer.write((String) args[0]);
+            return;
+        }
         print(thisObj, args);
     }
 
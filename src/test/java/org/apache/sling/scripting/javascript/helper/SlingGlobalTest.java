@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.scripting.SlingScript;
+import org.apache.sling.api.scripting.SlingScriptHelper;
+import org.apache.sling.scripting.javascript.internal.ScriptEngineHelper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SlingGlobalTest {
+
+    @Test
+    void testLoadedScriptIsCompiledOnce() throws Exception {
+        ResourceResolver resolver = mock(ResourceResolver.class);
+
+        ResourceMetadata metadata = new ResourceMetadata();
+        metadata.setModificationTime(1000);
+        Resource library = mock(Resource.class);
+        when(library.getPath()).thenReturn("/apps/test/library.js");
+        when(library.getResourceMetadata()).thenReturn(metadata);
+        when(library.adaptTo(InputStream.class))
+                .thenAnswer(invocation ->
+                        new ByteArrayInputStream("var greeting = 'hello ' + name;".getBytes(StandardCharsets.UTF_8)));
+        when(resolver.resolve("/apps/test/library.js")).thenReturn(library);
+
+        Resource page = mock(Resource.class);
+        when(page.getPath()).thenReturn("/apps/test/page.ecma");
+        when(page.getResourceResolver()).thenReturn(resolver);
+        SlingScript script = mock(SlingScript.class);
+        when(script.getScriptResource()).thenReturn(page);
+        SlingScriptHelper sling = mock(SlingScriptHelper.class);
+        when(sling.getScript()).thenReturn(script);
+
+        ScriptEngineHelper.Data data = new ScriptEngineHelper.Data();
+        data.put("sling", sling);
+        ScriptEngineHelper helper = new ScriptEngineHelper();
+        for (String name : new String[] {"one", "two"}) {
+            data.put("name", name);
+            assertEquals("hello " + name, helper.eval("load('library.js'); greeting", data));
+        }
+
+        // the unmodified library is read and compiled only once
+        verify(library, times(1)).adaptTo(InputStream.class);
+    }
+
+    @Test
+    void testResolveModulePath() {
+        assertEquals("lib/bar", SlingGlobal.resolveModulePath("lib/foo", "./bar"));
+        assertEquals("lib/util/bar", SlingGlobal.resolveModulePath("lib/foo", "./util/./bar"));
+        assertEquals("bar", SlingGlobal.resolveModulePath("lib/foo", "../bar"));
+        assertEquals("a/c/d", SlingGlobal.resolveModulePath("a/b/foo", "../c/./d"));
+        assertEquals("bar", SlingGlobal.resolveModulePath("foo", "./bar"));
+        assertEquals("bar", SlingGlobal.resolveModulePath("lib/foo", "../../../bar"));
+        assertEquals("/x", SlingGlobal.resolveModulePath("/lib/foo", "../../x"));
+        assertEquals("lib/a/b", SlingGlobal.resolveModulePath("lib/foo", "./a//b"));
+    }
+}
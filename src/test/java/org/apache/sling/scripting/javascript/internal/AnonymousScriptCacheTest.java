@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.CompiledScript;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+
+class AnonymousScriptCacheTest {
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() {
+        AnonymousScriptCache cache = new AnonymousScriptCache(2);
+        CompiledScript a = mock(CompiledScript.class);
+        CompiledScript b = mock(CompiledScript.class);
+        CompiledScript c = mock(CompiledScript.class);
+        cache.put("a", a);
+        cache.put("b", b);
+        assertSame(a, cache.get("a"));
+        cache.put("c", c);
+
+        assertEquals(2, cache.getSize());
+        assertNull(cache.get("b"));
+        assertSame(a, cache.get("a"));
+        assertSame(c, cache.get("c"));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void testKey() {
+        assertEquals(AnonymousScriptCache.key("1 + 1", 9), AnonymousScriptCache.key("1 + 1", 9));
+        assertNotEquals(AnonymousScriptCache.key("1 + 1", 9), AnonymousScriptCache.key("1 + 2", 9));
+        assertNotEquals(AnonymousScriptCache.key("1 + 1", 9), AnonymousScriptCache.key("1 + 1", -1));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.apache.sling.scripting.javascript.io.EspTranspiler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CachingEspTranspilerTest {
+
+    private static final String TEMPLATE = "<p>${ title }</p>\n<% var x = 1; %>\n";
+
+    @TempDir
+    File directory;
+
+    @Test
+    void testCachedInMemory() throws IOException {
+        CachingEspTranspiler transpiler = new CachingEspTranspiler(10000, null, null, 0, 0);
+        String expected = new EspTranspiler().transpile(new StringReader(TEMPLATE));
+
+        assertEquals(expected, transpiler.transpile(new StringReader(TEMPLATE)));
+        assertEquals(expected, transpiler.transpile(new StringReader(TEMPLATE)));
+        assertEquals(expected, read(transpiler.transpilingReader(new StringReader(TEMPLATE))));
+        assertEquals(1, transpiler.getMissCount());
+        assertEquals(2, transpiler.getHitCount());
+        assertEquals(1, transpiler.size());
+        assertEquals(expected.length(), transpiler.getWeight());
+    }
+
+    @Test
+    void testOptionsAreKeys() throws IOException {
+        CachingEspTranspiler transpiler = new CachingEspTranspiler(10000, null, null, 0, 0);
+        transpiler.transpile(new StringReader(TEMPLATE));
+
+        transpiler.setOutInitStatement("out=getOut();");
+        assertTrue(transpiler.transpile(new StringReader(TEMPLATE)).startsWith("out=getOut();"));
+        transpiler.setCoalesceText(true);
+        transpiler.transpile(new StringReader(TEMPLATE));
+        assertEquals(3, transpiler.getMissCount());
+        assertEquals(0, transpiler.getHitCount());
+    }
+
+    @Test
+    void testEviction() throws IOException {
+        String script = new EspTranspiler().transpile(new StringReader("a0"));
+        CachingEspTranspiler transpiler = new CachingEspTranspiler(3 * script.length(), null, null, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            transpiler.transpile(new StringReader("a" + i));
+        }
+        assertEquals(3, transpiler.size());
+        assertEquals(3 * script.length(), transpiler.getWeight());
+
+        // the least recently used templates are translated again
+        transpiler.transpile(new StringReader("a4"));
+        transpiler.transpile(new StringReader("a0"));
+        assertEquals(1, transpiler.getHitCount());
+        assertEquals(6, transpiler.getMissCount());
+    }
+
+    @Test
+    void testPersistent() throws IOException {
+        String expected =
+                new CachingEspTranspiler(0, directory, "1", Long.MAX_VALUE, 0).transpile(new StringReader(TEMPLATE));
+        assertEquals(1, directory.list((dir, name) -> name.endsWith(".js")).length);
+
+        // a new instance, e.g. after a restart, reads the stored script
+        CachingEspTranspiler restarted = new CachingEspTranspiler(0, directory, "1", Long.MAX_VALUE, 0);
+        assertEquals(expected, restarted.transpile(new StringReader(TEMPLATE)));
+        assertEquals(1, restarted.getHitCount());
+        assertEquals(0, restarted.size());
+
+        // a new version removes the stored scripts and translates again
+        CachingEspTranspiler updated = new CachingEspTranspiler(0, directory, "2", Long.MAX_VALUE, 0);
+        assertEquals(0, entries().length);
+        assertEquals(expected, updated.transpile(new StringReader(TEMPLATE)));
+        assertEquals(1, updated.getMissCount());
+        assertEquals(1, entries().length);
+    }
+
+    @Test
+    void testDiskSizeLimit() throws IOException {
+        long length = new EspTranspiler().transpile(new StringReader("a0")).length();
+        CachingEspTranspiler transpiler = new CachingEspTranspiler(0, directory, "1", 2 * length, 0);
+        transpiler.transpile(new StringReader("a0"));
+        assertTrue(entries()[0].setLastModified(1000L));
+        transpiler.transpile(new StringReader("a1"));
+        for (File entry : entries()) {
+            if (entry.lastModified() != 1000L) {
+                assertTrue(entry.setLastModified(2000L));
+            }
+        }
+
+        // the least recently used script is removed
+        transpiler.transpile(new StringReader("a2"));
+        assertEquals(2, entries().length);
+        assertEquals(2 * length, transpiler.getDiskSize());
+
+        CachingEspTranspiler restarted = new CachingEspTranspiler(0, directory, "1", 2 * length, 0);
+        restarted.transpile(new StringReader("a1"));
+        restarted.transpile(new StringReader("a2"));
+        assertEquals(2, restarted.getHitCount());
+        restarted.transpile(new StringReader("a0"));
+        assertEquals(1, restarted.getMissCount());
+        assertEquals(2, entries().length);
+    }
+
+    private File[] entries() {
+        return directory.listFiles((dir, name) -> name.endsWith(".js"));
+    }
+
+    private static String read(Reader reader) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (int c; (c = reader.read()) >= 0; ) {
+            buf.append((char) c);
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import org.apache.sling.commons.classloader.DynamicClassLoader;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mozilla.javascript.ClassCache;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptableObject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassCacheClearingTest {
+
+    private final ClassCacheClearing clearing = new ClassCacheClearing();
+
+    private final ScriptableObject scope = new NativeObject();
+
+    private final CountingClassCache classCache = new CountingClassCache();
+
+    @BeforeEach
+    void setUp() {
+        classCache.associate(scope);
+    }
+
+    @Test
+    void testClearedOncePerGeneration() {
+        TestClassLoader stale = new TestClassLoader(false);
+        assertTrue(clearing.clearIfStale(stale, scope));
+
+        // further requests with the same stale loader keep the rebuilt cache
+        assertFalse(clearing.clearIfStale(stale, scope));
+        assertFalse(clearing.clearIfStale(stale, scope));
+        assertEquals(1, classCache.clears);
+        assertEquals(1, clearing.getClearCount());
+        assertEquals(2, clearing.getSkippedClearCount());
+
+        // the next generation clears the cache again
+        assertTrue(clearing.clearIfStale(new TestClassLoader(false), scope));
+        assertEquals(2, classCache.clears);
+        assertEquals(2, clearing.getClearCount());
+    }
+
+    @Test
+    void testLiveAndOtherLoadersAreIgnored() {
+        assertFalse(clearing.clearIfStale(new TestClassLoader(true), scope));
+        assertFalse(clearing.clearIfStale(getClass().getClassLoader(), scope));
+        assertFalse(clearing.clearIfStale(new TestClassLoader(false), null));
+        assertEquals(0, classCache.clears);
+        assertEquals(0, clearing.getClearCount());
+    }
+
+    private static class CountingClassCache extends ClassCache {
+
+        private static final long serialVersionUID = 1L;
+
+        private int clears;
+
+        @Override
+        public synchronized void clearCaches() {
+            clears++;
+            super.clearCaches();
+        }
+    }
+
+    private static class TestClassLoader extends ClassLoader implements DynamicClassLoader {
+
+        private final boolean live;
+
+        TestClassLoader(boolean live) {
+            this.live = live;
+        }
+
+        @Override
+        public boolean isLive() {
+            return live;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompilationPolicyTest {
+
+    @Test
+    void testGlobs() {
+        CompilationPolicy policy = CompilationPolicy.parse("/apps/*/generated/**.esp=0");
+        assertTrue(policy.matches("/apps/site/generated/page.esp"));
+        assertTrue(policy.matches("/apps/site/generated/deep/page.esp"));
+        assertFalse(policy.matches("/apps/site/deep/generated/page.esp"));
+        assertFalse(policy.matches("/apps/site/generated/page.ecma"));
+
+        policy = CompilationPolicy.parse("/libs/a?c.ecma=9");
+        assertTrue(policy.matches("/libs/abc.ecma"));
+        assertFalse(policy.matches("/libs/a/c.ecma"));
+        assertFalse(policy.matches("/libs/axxc.ecma"));
+    }
+
+    @Test
+    void testSettings() {
+        CompilationPolicy policy = CompilationPolicy.parse("/apps/**=-1,nocache");
+        assertEquals(-1, policy.getOptimizationLevel());
+        assertFalse(policy.isCache());
+
+        policy = CompilationPolicy.parse("/apps/**=5, cache");
+        assertEquals(5, policy.getOptimizationLevel());
+        assertTrue(policy.isCache());
+
+        policy = CompilationPolicy.parse("/apps/**=9");
+        assertEquals(9, policy.getOptimizationLevel());
+        assertTrue(policy.isCache());
+    }
+
+    @Test
+    void testInvalidRules() {
+        assertThrows(IllegalArgumentException.class, () -> CompilationPolicy.parse("/apps/**"));
+        assertThrows(IllegalArgumentException.class, () -> CompilationPolicy.parse("/apps/**=10"));
+        assertThrows(IllegalArgumentException.class, () -> CompilationPolicy.parse("/apps/**=high"));
+        assertThrows(IllegalArgumentException.class, () -> CompilationPolicy.parse("/apps/**=9,sometimes"));
+
+        List<CompilationPolicy> policies =
+                CompilationPolicy.parse(new String[] {"/apps/**=10", "", null, "/libs/**=1,nocache"});
+        assertEquals(1, policies.size());
+        assertTrue(policies.get(0).matches("/libs/script.ecma"));
+    }
+
+    @Test
+    void testDefaultPolicy() {
+        CompilationPolicy policy = CompilationPolicy.defaultPolicy(9);
+        assertFalse(policy.matches("/apps/script.ecma"));
+        assertEquals(9, policy.getOptimizationLevel());
+        assertTrue(policy.isCache());
+    }
+}
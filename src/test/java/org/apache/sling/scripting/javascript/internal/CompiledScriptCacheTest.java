@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompiledScriptCacheTest {
+
+    private final List<String> evicted = new ArrayList<>();
+
+    private final CompiledScriptCache cache = new CompiledScriptCache(1000, evicted::add);
+
+    @Test
+    void testLeastRecentlyUsedScriptsAreEvictedByWeight() {
+        cache.put("/apps/a.ecma", 1, 400);
+        cache.put("/apps/b.ecma", 2, 400);
+        cache.touch("/apps/a.ecma");
+
+        cache.put("/apps/c.ecma", 1, 400);
+        assertEquals(Collections.singletonList("/apps/b.ecma"), evicted);
+        assertEquals(2, cache.getSize());
+        assertEquals(2, cache.getClassCount());
+        assertEquals(800, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0.25, cache.getHitRate(), 0.001);
+
+        // a single script exceeding the budget is kept on its own
+        cache.put("/apps/huge.ecma", 3, 5000);
+        assertEquals(Arrays.asList("/apps/b.ecma", "/apps/a.ecma", "/apps/c.ecma"), evicted);
+        assertEquals(1, cache.getSize());
+        assertEquals(5000, cache.getWeight());
+    }
+
+    @Test
+    void testReplaceAndRemove() {
+        cache.put("/apps/a.ecma", 1, 400);
+        cache.put("/apps/a.ecma", 2, 600);
+        assertEquals(1, cache.getSize());
+        assertEquals(600, cache.getWeight());
+        assertEquals(2, cache.getClassCount());
+
+        cache.remove("/apps/a.ecma");
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.getClassCount());
+        assertEquals(Collections.emptyList(), evicted);
+    }
+
+    @Test
+    void testInterpretedScriptsAreNotCached() {
+        cache.put("/apps/a.ecma", 0, 0);
+        assertEquals(0, cache.getSize());
+    }
+}
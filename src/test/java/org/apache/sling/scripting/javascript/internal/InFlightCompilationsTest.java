@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class InFlightCompilationsTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    void testConcurrentCompilationsAreCoalesced() throws Exception {
+        final InFlightCompilations compilations = new InFlightCompilations();
+        final CompiledScript compiled = mock(CompiledScript.class);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<CompiledScript>> results = new ArrayList<>();
+            results.add(executor.submit(() -> compilations.compile("/apps/test.ecma", () -> {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new ScriptException(ie);
+                }
+                return compiled;
+            })));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            for (int i = 1; i < THREADS; i++) {
+                results.add(executor.submit(() -> compilations.compile("/apps/test.ecma", () -> {
+                    runs.incrementAndGet();
+                    return mock(CompiledScript.class);
+                })));
+            }
+
+            // wait for all followers to join the running compilation
+            long deadline = System.currentTimeMillis() + 10000;
+            while (compilations.getCoalescedCount() < THREADS - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            for (Future<CompiledScript> result : results) {
+                assertSame(compiled, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, runs.get());
+            assertEquals(1, compilations.getCompilationCount());
+            assertEquals(THREADS - 1, compilations.getCoalescedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailureIsPropagatedAndNotRetained() throws Exception {
+        InFlightCompilations compilations = new InFlightCompilations();
+        assertThrows(
+                ScriptException.class,
+                () -> compilations.compile("/apps/broken.ecma", () -> {
+                    throw new ScriptException("broken");
+                }));
+
+        CompiledScript compiled = mock(CompiledScript.class);
+        assertSame(compiled, compilations.compile("/apps/broken.ecma", () -> compiled));
+        assertEquals(2, compilations.getCompilationCount());
+    }
+}
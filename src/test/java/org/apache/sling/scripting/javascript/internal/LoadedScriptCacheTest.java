@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.SimpleBindings;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.ScriptableObject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LoadedScriptCacheTest {
+
+    private static final String PATH = "/apps/test/util.js";
+
+    private final LoadedScriptCache cache = new LoadedScriptCache();
+
+    private Context cx;
+
+    @BeforeEach
+    void setUp() {
+        cx = Context.enter();
+    }
+
+    @AfterEach
+    void tearDown() {
+        Context.exit();
+    }
+
+    @Test
+    void testUnmodifiedScriptIsCompiledOnce() throws IOException {
+        Script script = cache.getScript(cx, resource("exports.a = 1;", 1000), PATH);
+        assertSame(script, cache.getScript(cx, resource("exports.a = 1;", 1000), PATH));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    void testModifiedScriptIsCompiledAgain() throws IOException {
+        Script script = cache.getScript(cx, resource("exports.a = 1;", 1000), PATH);
+        assertNotSame(script, cache.getScript(cx, resource("exports.a = 2;", 2000), PATH));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    void testScriptWithoutModificationTimeIsComparedByContent() throws IOException {
+        Script script = cache.getScript(cx, resource("exports.a = 1;", -1), PATH);
+        assertSame(script, cache.getScript(cx, resource("exports.a = 1;", -1), PATH));
+        assertNotSame(script, cache.getScript(cx, resource("exports.a = 2;", -1), PATH));
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    void testScriptWithoutModificationTimeIsComparedOncePerRequest() throws IOException {
+        RequestScope scope = new RequestScope(new ImporterTopLevel(cx));
+        scope.bind(new SimpleBindings());
+        Script script = cache.getScript(cx, resource("exports.a = 1;", -1), PATH);
+        ScriptRuntime.doTopCall(
+                (cx, s, thisObj, args) -> {
+                    try {
+                        assertSame(script, cache.getScript(cx, resource("exports.a = 1;", -1), PATH));
+                        // not read again, though the content changed
+                        assertSame(script, cache.getScript(cx, resource("exports.a = 2;", -1), PATH));
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException(ioe);
+                    }
+                    return null;
+                },
+                cx,
+                scope,
+                scope,
+                new Object[0]);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+
+        // the next request reads the resource again
+        scope.bind(new SimpleBindings());
+        ScriptRuntime.doTopCall(
+                (cx, s, thisObj, args) -> {
+                    try {
+                        assertNotSame(script, cache.getScript(cx, resource("exports.a = 2;", -1), PATH));
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException(ioe);
+                    }
+                    return null;
+                },
+                cx,
+                scope,
+                scope,
+                new Object[0]);
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    void testLeastRecentlyUsedScriptIsEvicted() throws IOException {
+        LoadedScriptCache cache = new LoadedScriptCache(2);
+        Script first = cache.getScript(cx, resource("exports.a = 1;", 1000), "/apps/test/first.js");
+        cache.getScript(cx, resource("exports.a = 2;", 1000), "/apps/test/second.js");
+        assertSame(first, cache.getScript(cx, resource("exports.a = 1;", 1000), "/apps/test/first.js"));
+        cache.getScript(cx, resource("exports.a = 3;", 1000), "/apps/test/third.js");
+        assertEquals(2, cache.size());
+
+        // the second script has been evicted, the first has been used since
+        assertSame(first, cache.getScript(cx, resource("exports.a = 1;", 1000), "/apps/test/first.js"));
+        cache.getScript(cx, resource("exports.a = 2;", 1000), "/apps/test/second.js");
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    void testInvalidate() throws IOException {
+        Script script = cache.getScript(cx, resource("exports.a = 1;", 1000), PATH);
+        cache.invalidate(PATH);
+        assertNotSame(script, cache.getScript(cx, resource("exports.a = 1;", 1000), PATH));
+    }
+
+    @Test
+    void testUnreadableScript() {
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(PATH);
+        when(resource.getResourceMetadata()).thenReturn(new ResourceMetadata());
+        assertThrows(IOException.class, () -> cache.getScript(cx, resource, PATH));
+    }
+
+    @Test
+    void testAssociatedWithRootScope() {
+        ScriptableObject rootScope = new ImporterTopLevel(cx);
+        cache.associate(rootScope);
+        ImporterTopLevel requestScope = new ImporterTopLevel();
+        requestScope.setPrototype(rootScope);
+        assertSame(cache, LoadedScriptCache.get(requestScope));
+    }
+
+    private static Resource resource(String source, long modificationTime) {
+        ResourceMetadata metadata = new ResourceMetadata();
+        metadata.setModificationTime(modificationTime);
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(PATH);
+        when(resource.getResourceMetadata()).thenReturn(metadata);
+        when(resource.adaptTo(InputStream.class))
+                .thenReturn(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+        return resource;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.Arrays;
+
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ModuleResolutionCacheTest {
+
+    private final ModuleResolutionCache cache = new ModuleResolutionCache();
+
+    private ResourceResolver resolver;
+
+    private Resource module;
+
+    @BeforeEach
+    void setUp() {
+        module = mock(Resource.class);
+        when(module.getPath()).thenReturn("/libs/lib/util.js");
+
+        resolver = mock(ResourceResolver.class);
+        when(resolver.getUserID()).thenReturn("user");
+        when(resolver.getSearchPath()).thenReturn(new String[] {"/apps/", "/libs/"});
+        when(resolver.resolve(anyString()))
+                .thenAnswer(invocation -> new NonExistingResource(resolver, invocation.getArgument(0)));
+        when(resolver.resolve("/libs/lib/util.js")).thenReturn(module);
+
+        cache.setNegativeTtl(60000);
+    }
+
+    @Test
+    void testFoundModuleIsLookedUpDirectly() {
+        assertSame(module, cache.resolve(resolver, "lib/util.js"));
+        assertSame(module, cache.resolve(resolver, "lib/util.js"));
+        verify(resolver, times(1)).resolve("/apps/lib/util.js");
+        verify(resolver, times(2)).resolve("/libs/lib/util.js");
+    }
+
+    @Test
+    void testMissingModuleIsRemembered() {
+        assertNull(cache.resolve(resolver, "lib/missing.js"));
+        assertNull(cache.resolve(resolver, "lib/missing.js"));
+        verify(resolver, times(1)).resolve("/apps/lib/missing.js");
+        verify(resolver, times(1)).resolve("/libs/lib/missing.js");
+    }
+
+    @Test
+    void testMissingModuleIsNotRememberedWithoutTtl() {
+        cache.setNegativeTtl(0);
+        assertNull(cache.resolve(resolver, "lib/missing.js"));
+        assertNull(cache.resolve(resolver, "lib/missing.js"));
+        verify(resolver, times(2)).resolve("/apps/lib/missing.js");
+    }
+
+    @Test
+    void testEntriesArePerUser() {
+        assertSame(module, cache.resolve(resolver, "lib/util.js"));
+        when(resolver.getUserID()).thenReturn("other");
+        assertSame(module, cache.resolve(resolver, "lib/util.js"));
+        verify(resolver, times(2)).resolve("/apps/lib/util.js");
+    }
+
+    @Test
+    void testRemovedModuleIsResolvedAgain() {
+        assertSame(module, cache.resolve(resolver, "lib/util.js"));
+        when(resolver.resolve("/libs/lib/util.js")).thenReturn(new NonExistingResource(resolver, "/libs/lib/util.js"));
+        assertNull(cache.resolve(resolver, "lib/util.js"));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntriesAreEvicted() {
+        assertSame(module, cache.resolve(resolver, "lib/util.js"));
+        for (int i = 0; i < ModuleResolutionCache.MAX_ENTRIES; i++) {
+            assertNull(cache.resolve(resolver, "lib/missing" + i + ".js"));
+            if (i % 100 == 0) {
+                assertSame(module, cache.resolve(resolver, "lib/util.js"));
+            }
+        }
+        assertEquals(ModuleResolutionCache.MAX_ENTRIES, cache.size());
+
+        // the frequently used module is kept, the eldest missing one is not
+        assertSame(module, cache.resolve(resolver, "lib/util.js"));
+        verify(resolver, times(1)).resolve("/apps/lib/util.js");
+        assertNull(cache.resolve(resolver, "lib/missing0.js"));
+        verify(resolver, times(2)).resolve("/apps/lib/missing0.js");
+        assertNull(cache.resolve(resolver, "lib/missing999.js"));
+        verify(resolver, times(1)).resolve("/apps/lib/missing999.js");
+    }
+
+    @Test
+    void testChangeEvents() {
+        ScriptChangeListener listener =
+                new ScriptChangeListener(null, new LoadedScriptCache(), cache, new ScriptDependencies(), null, null);
+        cache.resolve(resolver, "lib/util.js");
+        cache.resolve(resolver, "lib/missing.js");
+        assertEquals(2, cache.size());
+
+        listener.onChange(Arrays.asList(new ResourceChange(ChangeType.REMOVED, "/libs/lib/other.js", false)));
+        assertEquals(2, cache.size());
+        listener.onChange(Arrays.asList(new ResourceChange(ChangeType.REMOVED, "/libs/lib", false)));
+        assertEquals(1, cache.size());
+        listener.onChange(Arrays.asList(new ResourceChange(ChangeType.ADDED, "/apps/lib/missing.js", false)));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.File;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentScriptCacheTest {
+
+    @TempDir
+    File directory;
+
+    private Context cx;
+
+    private Scriptable scope;
+
+    @BeforeEach
+    void setUp() {
+        cx = Context.enter();
+        cx.setOptimizationLevel(9);
+        scope = cx.initStandardObjects();
+    }
+
+    @AfterEach
+    void tearDown() {
+        Context.exit();
+    }
+
+    @Test
+    void testReloadAfterRestart() {
+        Script compiled = new PersistentScriptCache(directory, "1.7.7.1")
+                .getScript(cx, "6 * 7", "/apps/test.ecma")
+                .getScript();
+        assertEquals(42, ((Number) compiled.exec(cx, scope)).intValue());
+        assertEquals(1, entries());
+        File entry = directory.listFiles((dir, name) -> name.endsWith(".class"))[0];
+        assertTrue(entry.setLastModified(1000L));
+
+        // a new instance simulates a restart
+        Script reloaded = new PersistentScriptCache(directory, "1.7.7.1")
+                .getScript(cx, "6 * 7", "/apps/test.ecma")
+                .getScript();
+        assertEquals(42, ((Number) reloaded.exec(cx, scope)).intValue());
+        assertEquals(compiled.getClass().getName(), reloaded.getClass().getName());
+        assertNotSame(compiled.getClass(), reloaded.getClass());
+        assertEquals(1, entries());
+        assertEquals(1000L, entry.lastModified(), "Entry must not have been rewritten");
+    }
+
+    @Test
+    void testChangedSourceIsRecompiled() {
+        PersistentScriptCache cache = new PersistentScriptCache(directory, "1.7.7.1");
+        cache.getScript(cx, "6 * 7", "/apps/test.ecma");
+        Script changed = cache.getScript(cx, "6 * 8", "/apps/test.ecma").getScript();
+        assertEquals(48, ((Number) changed.exec(cx, scope)).intValue());
+        assertEquals(1, entries(), "The previous entry must have been replaced");
+    }
+
+    @Test
+    void testOtherRhinoVersionIsRemoved() {
+        new PersistentScriptCache(directory, "1.7.7.1").getScript(cx, "6 * 7", "/apps/test.ecma");
+        new PersistentScriptCache(directory, "1.7.7.1").getScript(cx, "6 * 7", "/apps/other.ecma");
+        assertEquals(2, entries());
+
+        new PersistentScriptCache(directory, "1.7.14");
+        assertEquals(0, entries());
+    }
+
+    @Test
+    void testOptimizationLevelIsPartOfTheKey() {
+        PersistentScriptCache cache = new PersistentScriptCache(directory, "1.7.7.1");
+        cache.getScript(cx, "6 * 7", "/apps/test.ecma");
+        cx.setOptimizationLevel(0);
+        cache.getScript(cx, "6 * 7", "/apps/test.ecma");
+        assertEquals(2, entries());
+    }
+
+    @Test
+    void testMissingDirectoryIsCreated() {
+        File nested = new File(directory, "nested");
+        Script compiled = new PersistentScriptCache(nested, "1.7.7.1")
+                .getScript(cx, "'ok'", "/apps/test.ecma")
+                .getScript();
+        assertEquals("ok", compiled.exec(cx, scope));
+        assertEquals(1, nested.listFiles((dir, name) -> name.endsWith(".class")).length);
+    }
+
+    private int entries() {
+        return directory.listFiles((dir, name) -> name.endsWith(".class")).length;
+    }
+}
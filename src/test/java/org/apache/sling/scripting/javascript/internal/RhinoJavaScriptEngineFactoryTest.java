@@ -18,18 +18,26 @@
  */
 package org.apache.sling.scripting.javascript.internal;
 
+import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
+import javax.script.SimpleScriptContext;
 
 import java.util.Arrays;
 
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
 import org.apache.sling.scripting.api.ScriptCache;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
 import org.apache.sling.testing.mock.osgi.junit5.OsgiContext;
 import org.apache.sling.testing.mock.osgi.junit5.OsgiContextExtension;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -58,4 +66,49 @@ class RhinoJavaScriptEngineFactoryTest {
                 instance.getEngineName() != null && instance.getEngineName().contains("Rhino 1.7.7.1_1"),
                 "Unexpected engine name");
     }
+
+    @Test
+    void testSnapshotIsShared() throws Exception {
+        DynamicClassLoaderManager dynamicClassLoaderManager = mock(DynamicClassLoaderManager.class);
+        when(dynamicClassLoaderManager.getDynamicClassLoader())
+                .thenReturn(RhinoJavaScriptEngineFactoryTest.class.getClassLoader());
+        context.registerService(DynamicClassLoaderManager.class, dynamicClassLoaderManager);
+        context.registerService(ScriptCache.class, mock(ScriptCache.class));
+        RhinoJavaScriptEngineFactory factory = new RhinoJavaScriptEngineFactory();
+        context.registerInjectActivateService(factory);
+
+        ScriptEngine engine = factory.getScriptEngine();
+        ScriptEngine other = factory.getScriptEngine();
+        assertNotSame(engine, other);
+        assertSame(((RhinoJavaScriptEngine) engine).getSnapshot(), ((RhinoJavaScriptEngine) other).getSnapshot());
+        assertSame(((RhinoJavaScriptEngine) engine).getSnapshot().getRootScope(), factory.getScope());
+
+        // engines do not share their default bindings
+        engine.put("shared", "value");
+        assertNull(other.get("shared"));
+        assertEquals("3", String.valueOf(engine.eval("1 + 2", new SimpleScriptContext())));
+
+        MockOsgi.deactivate(factory, context.bundleContext());
+        assertNull(factory.getScriptEngine());
+        assertNull(factory.getScope());
+    }
+
+    @Test
+    void testWarmUpStartsWhenResourceResolverFactoryIsBound() {
+        DynamicClassLoaderManager dynamicClassLoaderManager = mock(DynamicClassLoaderManager.class);
+        when(dynamicClassLoaderManager.getDynamicClassLoader())
+                .thenReturn(RhinoJavaScriptEngineFactoryTest.class.getClassLoader());
+        context.registerService(DynamicClassLoaderManager.class, dynamicClassLoaderManager);
+        context.registerService(ScriptCache.class, mock(ScriptCache.class));
+        RhinoJavaScriptEngineFactory factory = new RhinoJavaScriptEngineFactory();
+        context.registerInjectActivateService(factory, "org.apache.sling.scripting.javascript.rhino.warmup", true);
+        assertNull(context.getService(ScriptWarmUpMBean.class));
+
+        context.registerService(ResourceResolverFactory.class, mock(ResourceResolverFactory.class));
+        ScriptWarmUpMBean warmUp = context.getService(ScriptWarmUpMBean.class);
+        assertNotNull(warmUp);
+
+        MockOsgi.deactivate(factory, context.bundleContext());
+        assertNull(context.getService(ScriptWarmUpMBean.class));
+    }
 }
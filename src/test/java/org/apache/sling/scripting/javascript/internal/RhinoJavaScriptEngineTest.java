@@ -19,21 +19,51 @@
 package org.apache.sling.scripting.javascript.internal;
 
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import javax.script.SimpleBindings;
 
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.sling.api.scripting.LazyBindings;
+import org.apache.sling.scripting.api.CachedScript;
 import org.apache.sling.scripting.api.ScriptCache;
+import org.apache.sling.scripting.core.ScriptNameAwareReader;
 import org.apache.sling.scripting.javascript.helper.SlingWrapFactory;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ImporterTopLevel;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.debug.DebugFrame;
+import org.mozilla.javascript.debug.DebuggableScript;
+import org.mozilla.javascript.debug.Debugger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -86,6 +116,466 @@ class RhinoJavaScriptEngineTest {
         assertEquals(42.0, result);
     }
 
+    @Test
+    void testBindingsAreResolvedOnAccess() throws ScriptException {
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory();
+        ScriptEngine engine = factory.getScriptEngine();
+        final AtomicInteger used = new AtomicInteger();
+        final AtomicInteger unused = new AtomicInteger();
+        Bindings context = new LazyBindings();
+        context.put("used", (LazyBindings.Supplier) () -> used.incrementAndGet());
+        context.put("unused", (LazyBindings.Supplier) () -> unused.incrementAndGet());
+        context.put("text", "value");
+
+        assertEquals(2.0, engine.eval("var written = used + used; written", context));
+        assertEquals(1, used.get());
+        assertEquals(0, unused.get());
+
+        // only written variables are copied back
+        assertEquals(2.0, context.get("written"));
+        assertEquals("value", context.get("text"));
+        assertEquals(0, unused.get());
+    }
+
+    @Test
+    void testWriteBackModes() throws ScriptException {
+        final String script = "var a = 1; var b = 2; c = 3";
+
+        Bindings context = evalWithWriteBack(RhinoJavaScriptEngineFactory.WRITE_BACK_WRITTEN, script);
+        assertEquals(1, ((Number) context.get("a")).intValue());
+        assertEquals(2, ((Number) context.get("b")).intValue());
+        assertEquals(3, ((Number) context.get("c")).intValue());
+        assertTrue(context.get("text") instanceof String);
+
+        context = evalWithWriteBack(RhinoJavaScriptEngineFactory.WRITE_BACK_LISTED, script);
+        assertEquals(1, ((Number) context.get("a")).intValue());
+        assertFalse(context.containsKey("b"));
+        assertEquals(3, ((Number) context.get("c")).intValue());
+
+        // legacy mode copies back the wrapped bindings as well
+        context = evalWithWriteBack(RhinoJavaScriptEngineFactory.WRITE_BACK_ALL, script);
+        assertEquals(2, ((Number) context.get("b")).intValue());
+        assertFalse(context.get("text") instanceof String);
+    }
+
+    private static Bindings evalWithWriteBack(final String writeBackMode, String script) throws ScriptException {
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            String getWriteBackMode() {
+                return writeBackMode;
+            }
+
+            @Override
+            Set<String> getWriteBackNames() {
+                return new HashSet<>(Arrays.asList("a", "c", "d"));
+            }
+        };
+        Bindings context = new SimpleBindings();
+        context.put("text", "value");
+        factory.getScriptEngine().eval(script, context);
+        return context;
+    }
+
+    @Test
+    void testTieredCompilation() throws ScriptException {
+        TieredRhinoJavaScriptEngineFactory factory = new TieredRhinoJavaScriptEngineFactory();
+        ScriptEngine engine = factory.getScriptEngine();
+        CompiledScript script = ((Compilable) engine)
+                .compile(new ScriptNameAwareReader(new StringReader("'x' + (1 + 1)"), "/apps/tiered.ecma"));
+        Bindings context = new SimpleBindings();
+        assertEquals("x2", script.eval(context));
+        assertEquals(0, factory.promotions);
+        assertEquals("x2", script.eval(context));
+        assertEquals(1, factory.promotions);
+
+        // promoted only once
+        assertEquals("x2", script.eval(context));
+        assertEquals(1, factory.promotions);
+    }
+
+    @Test
+    void testAnonymousScriptsAreCached() throws ScriptException {
+        final AnonymousScriptCache anonymousScriptCache = new AnonymousScriptCache(10);
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            AnonymousScriptCache getAnonymousScriptCache() {
+                return anonymousScriptCache;
+            }
+        };
+        Compilable engine = (Compilable) factory.getScriptEngine();
+        CompiledScript script = engine.compile("'\u00e9t\u00e9'.length");
+        assertSame(script, engine.compile("'\u00e9t\u00e9'.length"));
+        assertSame(script, engine.compile(new StringReader("'\u00e9t\u00e9'.length")));
+        assertEquals(3, script.eval(new SimpleBindings()));
+        assertEquals(1, anonymousScriptCache.getMissCount());
+        assertEquals(2, anonymousScriptCache.getHitCount());
+    }
+
+    @Test
+    void testChangedScriptIsServedWhileRecompiling() throws ScriptException {
+        final List<Runnable> compilations = new ArrayList<>();
+        final StaleScripts staleScripts = new StaleScripts(60000, compilations::add);
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            StaleScripts getStaleScripts() {
+                return staleScripts;
+            }
+        };
+        Compilable engine = (Compilable) factory.getScriptEngine();
+        CompiledScript v1 = engine.compile(new ScriptNameAwareReader(new StringReader("'v1'"), "/apps/swr.ecma"));
+        staleScripts.changed("/apps/swr.ecma");
+
+        // the previous version is served until the background compilation completes
+        assertSame(v1, engine.compile(new ScriptNameAwareReader(new StringReader("'v2'"), "/apps/swr.ecma")));
+        assertSame(v1, engine.compile(new ScriptNameAwareReader(new StringReader("'v2'"), "/apps/swr.ecma")));
+        assertEquals(1, compilations.size());
+        compilations.remove(0).run();
+        assertEquals(
+                "v2",
+                engine.compile(new ScriptNameAwareReader(new StringReader("'v2'"), "/apps/swr.ecma"))
+                        .eval(new SimpleBindings()));
+
+        // a broken change keeps the previous version and is not compiled again
+        CompiledScript v2 = engine.compile(new ScriptNameAwareReader(new StringReader("'v2'"), "/apps/swr.ecma"));
+        staleScripts.changed("/apps/swr.ecma");
+        assertSame(v2, engine.compile(new ScriptNameAwareReader(new StringReader("'v3"), "/apps/swr.ecma")));
+        compilations.remove(0).run();
+        assertEquals(1, staleScripts.getFailureCount());
+        assertSame(v2, engine.compile(new ScriptNameAwareReader(new StringReader("'v3"), "/apps/swr.ecma")));
+        assertTrue(compilations.isEmpty());
+    }
+
+    @Test
+    void testCompiledScriptsAreWeighed() throws ScriptException {
+        final ScriptCache mapScriptCache = new MapScriptCache();
+        final CompiledScriptCache compiledScriptCache = new CompiledScriptCache(1024 * 1024, name -> {});
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            public ScriptEngine getScriptEngine() {
+                final Context rhinoContext = Context.enter();
+                try {
+                    return new RhinoJavaScriptEngine(
+                            this, rhinoContext.initStandardObjects(new ImporterTopLevel(), false), mapScriptCache);
+                } finally {
+                    Context.exit();
+                }
+            }
+
+            @Override
+            int getOptimizationLevel() {
+                return 9;
+            }
+
+            @Override
+            CompiledScriptCache getCompiledScriptCache() {
+                return compiledScriptCache;
+            }
+        };
+        Compilable engine = (Compilable) factory.getScriptEngine();
+        CompiledScript script = engine.compile(
+                new ScriptNameAwareReader(new StringReader("function f() { return 'ok'; } f()"), "/apps/weigh.ecma"));
+        assertEquals("ok", script.eval(new SimpleBindings()));
+        assertEquals(1, compiledScriptCache.getSize());
+        assertEquals(1, compiledScriptCache.getClassCount());
+        assertTrue(compiledScriptCache.getWeight() > 0);
+
+        assertSame(script, engine.compile(new ScriptNameAwareReader(new StringReader("ignored"), "/apps/weigh.ecma")));
+        assertEquals(1, compiledScriptCache.getHitCount());
+
+        // the ScriptCache decides whether the script is compiled again
+        mapScriptCache.clear();
+        CompiledScript recompiled =
+                engine.compile(new ScriptNameAwareReader(new StringReader("'changed'"), "/apps/weigh.ecma"));
+        assertEquals("changed", recompiled.eval(new SimpleBindings()));
+        assertEquals(1, compiledScriptCache.getSize());
+        assertEquals(2, compiledScriptCache.getMissCount());
+    }
+
+    @Test
+    void testDebuggerIsNotifiedOfCompiledScripts() throws ScriptException {
+        final CompiledScriptCache compiledScriptCache = new CompiledScriptCache(1024 * 1024, name -> {});
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            int getOptimizationLevel() {
+                return 9;
+            }
+
+            @Override
+            CompiledScriptCache getCompiledScriptCache() {
+                return compiledScriptCache;
+            }
+        };
+        Compilable engine = (Compilable) factory.getScriptEngine();
+        final List<String> compiled = new ArrayList<>();
+        final String source = "function f() { return 'ok'; } f()";
+
+        final Context rhinoContext = Context.enter();
+        try {
+            rhinoContext.setDebugger(
+                    new Debugger() {
+                        @Override
+                        public void handleCompilationDone(Context cx, DebuggableScript fnOrScript, String source) {
+                            compiled.add(fnOrScript.isFunction() ? fnOrScript.getFunctionName() : source);
+                        }
+
+                        @Override
+                        public DebugFrame getFrame(Context cx, DebuggableScript fnOrScript) {
+                            return null;
+                        }
+                    },
+                    null);
+            CompiledScript script =
+                    engine.compile(new ScriptNameAwareReader(new StringReader(source), "/apps/debugged.ecma"));
+            assertEquals("ok", script.eval(new SimpleBindings()));
+        } finally {
+            rhinoContext.setDebugger(null, null);
+            Context.exit();
+        }
+        assertEquals(Arrays.asList(source, "f"), compiled);
+        assertEquals(0, compiledScriptCache.getSize());
+    }
+
+    @Test
+    void testEvictedScriptClassesAreUnloaded() throws Exception {
+        final ScriptCache mapScriptCache = new MapScriptCache();
+        final CompiledScriptCache compiledScriptCache = new CompiledScriptCache(1, mapScriptCache::removeScript);
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            public ScriptEngine getScriptEngine() {
+                final Context rhinoContext = Context.enter();
+                try {
+                    return new RhinoJavaScriptEngine(
+                            this, rhinoContext.initStandardObjects(new ImporterTopLevel(), false), mapScriptCache);
+                } finally {
+                    Context.exit();
+                }
+            }
+
+            @Override
+            int getOptimizationLevel() {
+                return 9;
+            }
+
+            @Override
+            CompiledScriptCache getCompiledScriptCache() {
+                return compiledScriptCache;
+            }
+        };
+        Compilable engine = (Compilable) factory.getScriptEngine();
+
+        // functions are instances of the class generated for the script
+        WeakReference<ClassLoader> loader = new WeakReference<>(engine.compile(new ScriptNameAwareReader(
+                        new StringReader("(function() { return 'first'; })"), "/apps/first.ecma"))
+                .eval(new SimpleBindings())
+                .getClass()
+                .getClassLoader());
+        assertNotSame(Context.class.getClassLoader(), loader.get());
+
+        // the budget only fits a single script
+        engine.compile(new ScriptNameAwareReader(new StringReader("'second'"), "/apps/second.ecma"));
+        assertEquals(1, compiledScriptCache.getEvictionCount());
+        assertNull(mapScriptCache.getScript("/apps/first.ecma"));
+
+        for (int i = 0; i < 50 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(loader.get(), "The class loader of the evicted script has not been collected");
+    }
+
+    @Test
+    void testCompilationFailuresAreRemembered() throws ScriptException {
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory();
+        Compilable engine = (Compilable) factory.getScriptEngine();
+        EvaluatorException first = assertThrows(
+                EvaluatorException.class,
+                () -> engine.compile(new ScriptNameAwareReader(new StringReader("var a = ;"), "/apps/broken.ecma")));
+        EvaluatorException second = assertThrows(
+                EvaluatorException.class,
+                () -> engine.compile(new ScriptNameAwareReader(new StringReader("var a = ;"), "/apps/broken.ecma")));
+        assertEquals(first.getMessage(), second.getMessage());
+        assertEquals(1, factory.getCompilationFailures().getHitCount());
+
+        // a fixed script is compiled again
+        CompiledScript script =
+                engine.compile(new ScriptNameAwareReader(new StringReader("var a = 'ok'; a"), "/apps/broken.ecma"));
+        assertEquals("ok", script.eval(new SimpleBindings()));
+        assertEquals(0, factory.getCompilationFailures().size());
+    }
+
+    @Test
+    void testCompilationFailuresAreKeyedByPolicy() throws ScriptException {
+        final AtomicInteger optimizationLevel = new AtomicInteger(-1);
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            CompilationPolicy getCompilationPolicy(String scriptName) {
+                return CompilationPolicy.defaultPolicy(optimizationLevel.get());
+            }
+        };
+        Compilable engine = (Compilable) factory.getScriptEngine();
+        assertThrows(
+                EvaluatorException.class,
+                () -> engine.compile(new ScriptNameAwareReader(new StringReader("var a = ;"), "/apps/broken.ecma")));
+
+        // a changed policy compiles the script again
+        optimizationLevel.set(9);
+        assertThrows(
+                EvaluatorException.class,
+                () -> engine.compile(new ScriptNameAwareReader(new StringReader("var a = ;"), "/apps/broken.ecma")));
+        assertEquals(0, factory.getCompilationFailures().getHitCount());
+        assertThrows(
+                EvaluatorException.class,
+                () -> engine.compile(new ScriptNameAwareReader(new StringReader("var a = ;"), "/apps/broken.ecma")));
+        assertEquals(1, factory.getCompilationFailures().getHitCount());
+    }
+
+    @Test
+    void testPooledScopesAreIsolated() throws Exception {
+        final RequestScopePool requestScopePool = new RequestScopePool();
+        final Scriptable rootScope;
+        final Context rhinoContext = Context.enter();
+        try {
+            rootScope = rhinoContext.initStandardObjects(new ImporterTopLevel(rhinoContext), false);
+        } finally {
+            Context.exit();
+        }
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            public ScriptEngine getScriptEngine() {
+                return new RhinoJavaScriptEngine(this, rootScope, scriptCache);
+            }
+
+            @Override
+            RequestScopePool getRequestScopePool() {
+                return requestScopePool;
+            }
+        };
+        final CompiledScript script = ((Compilable) factory.getScriptEngine())
+                .compile(new ScriptNameAwareReader(
+                        new StringReader("var result = [typeof leaked, typeof extra, typeof helper].join();\n"
+                                + "var leaked = id; extra = id; this.helper = id;\n"
+                                + "result + ',' + helper"),
+                        "/apps/pooled.ecma"));
+
+        final int threads = 8;
+        final int iterations = 250;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        String id = thread + "/" + i;
+                        Bindings bindings = new SimpleBindings();
+                        bindings.put("id", id);
+                        assertEquals("undefined,undefined,undefined," + id, script.eval(bindings));
+                        assertEquals(id, String.valueOf(bindings.get("leaked")));
+                        assertEquals(id, String.valueOf(bindings.get("extra")));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * iterations, requestScopePool.getCreatedScopes() + requestScopePool.getReusedScopes());
+        assertTrue(requestScopePool.getCreatedScopes() <= threads);
+        assertEquals(0, requestScopePool.getDiscardedScopes());
+
+        // closures and the scope itself may outlive the request, their
+        // scopes are not reused by the next request
+        final Compilable engine = (Compilable) factory.getScriptEngine();
+        final Object closure = engine.compile(new ScriptNameAwareReader(
+                        new StringReader("var secret = id; (function() { return secret; })"), "/apps/closure.ecma"))
+                .eval(bindings("first"));
+        assertEquals("undefined,undefined,undefined,second", script.eval(bindings("second")));
+        final Object scope = engine.compile(
+                        new ScriptNameAwareReader(new StringReader("var secret = id; this"), "/apps/this.ecma"))
+                .eval(bindings("third"));
+        assertEquals("undefined,undefined,undefined,fourth", script.eval(bindings("fourth")));
+        assertEquals(2, requestScopePool.getDiscardedScopes());
+
+        final Context cx = Context.enter();
+        try {
+            Function function = (Function) closure;
+            assertEquals("first", String.valueOf(function.call(cx, function.getParentScope(), null, new Object[0])));
+        } finally {
+            Context.exit();
+        }
+        assertEquals("third", String.valueOf(ScriptableObject.getProperty((Scriptable) scope, "secret")));
+    }
+
+    private static Bindings bindings(String id) {
+        Bindings bindings = new SimpleBindings();
+        bindings.put("id", id);
+        return bindings;
+    }
+
+    @Test
+    void testSealedScopeIsNotPooled() throws ScriptException {
+        final RequestScopePool requestScopePool = new RequestScopePool();
+        MockRhinoJavaScriptEngineFactory factory = new MockRhinoJavaScriptEngineFactory() {
+            @Override
+            RequestScopePool getRequestScopePool() {
+                return requestScopePool;
+            }
+        };
+        ScriptEngine engine = factory.getScriptEngine();
+        engine.eval("var secret = 1; Object.preventExtensions(this)", new SimpleBindings());
+        assertEquals(1, requestScopePool.getDiscardedScopes());
+    }
+
+    private static class TieredRhinoJavaScriptEngineFactory extends MockRhinoJavaScriptEngineFactory {
+
+        private int promotions;
+
+        @Override
+        int getOptimizationLevel() {
+            return 9;
+        }
+
+        @Override
+        int getTieredThreshold() {
+            return 2;
+        }
+
+        @Override
+        void promote(Runnable compilation) {
+            promotions++;
+            compilation.run();
+        }
+    }
+
+    private static class MapScriptCache implements ScriptCache {
+
+        private final Map<String, CachedScript> scripts = new ConcurrentHashMap<>();
+
+        @Override
+        public CachedScript getScript(String scriptPath) {
+            return scripts.get(scriptPath);
+        }
+
+        @Override
+        public void putScript(CachedScript script) {
+            scripts.put(script.getScriptPath(), script);
+        }
+
+        @Override
+        public void clear() {
+            scripts.clear();
+        }
+
+        @Override
+        public boolean removeScript(String scriptPath) {
+            return scripts.remove(scriptPath) != null;
+        }
+    }
+
     private static class MockRhinoJavaScriptEngineFactory extends RhinoJavaScriptEngineFactory {
 
         protected SlingWrapFactory wrapFactory;
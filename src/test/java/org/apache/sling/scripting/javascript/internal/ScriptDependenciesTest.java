@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.scripting.api.ScriptCache;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ScriptDependenciesTest {
+
+    private final ScriptDependencies dependencies = new ScriptDependencies();
+
+    @Test
+    void testDependentsAreInvalidated() {
+        dependencies.record("/apps/page/html.esp", "/apps/lib/util.js");
+        dependencies.record("/apps/other/html.esp", "/apps/lib/util.js");
+        dependencies.record("/apps/lib/util.js", "/apps/lib/base.js");
+        dependencies.record("/apps/unrelated/html.esp", "/apps/lib/other.js");
+
+        assertEquals(
+                new HashSet<>(Arrays.asList(
+                        "/apps/lib/base.js", "/apps/lib/util.js", "/apps/page/html.esp", "/apps/other/html.esp")),
+                dependencies.invalidate("/apps/lib/base.js"));
+
+        // dependencies are recorded again when the scripts are executed again
+        assertEquals(Collections.singleton("/apps/lib/base.js"), dependencies.invalidate("/apps/lib/base.js"));
+    }
+
+    @Test
+    void testFolderInvalidatesScriptsBelow() {
+        dependencies.record("/apps/page/html.esp", "/apps/lib/util.js");
+        dependencies.record("/apps/other/html.esp", "/apps/library/util.js");
+
+        assertEquals(
+                new HashSet<>(Arrays.asList("/apps/lib", "/apps/lib/util.js", "/apps/page/html.esp")),
+                dependencies.invalidate("/apps/lib"));
+    }
+
+    @Test
+    void testCyclesAreFollowedOnce() {
+        dependencies.record("/apps/a.js", "/apps/b.js");
+        dependencies.record("/apps/b.js", "/apps/a.js");
+        dependencies.record("/apps/a.js", "/apps/a.js");
+
+        assertEquals(new HashSet<>(Arrays.asList("/apps/a.js", "/apps/b.js")), dependencies.invalidate("/apps/a.js"));
+    }
+
+    @Test
+    void testListenerEvictsAffectedScripts() {
+        ScriptCache scriptCache = mock(ScriptCache.class);
+        ScriptChangeListener listener = new ScriptChangeListener(
+                scriptCache, new LoadedScriptCache(), new ModuleResolutionCache(), dependencies, null, null);
+        dependencies.record("/apps/page/html.esp", "/apps/lib/util.js");
+        dependencies.record("/apps/unrelated/html.esp", "/apps/lib/other.js");
+
+        listener.onChange(Arrays.asList(new ResourceChange(ChangeType.CHANGED, "/apps/lib/util.js", false)));
+
+        verify(scriptCache).removeScript("/apps/lib/util.js");
+        verify(scriptCache).removeScript("/apps/page/html.esp");
+        verify(scriptCache, never()).removeScript("/apps/unrelated/html.esp");
+    }
+}
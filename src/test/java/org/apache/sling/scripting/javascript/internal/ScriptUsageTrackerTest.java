@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScriptUsageTrackerTest {
+
+    @TempDir
+    File directory;
+
+    @Test
+    void testHotScriptsAcrossRestarts() {
+        File file = new File(directory, "hotscripts.txt");
+        ScriptUsageTracker tracker = new ScriptUsageTracker(file, 2);
+        assertTrue(tracker.load().isEmpty());
+        record(tracker, "/apps/cold.ecma", 2);
+        record(tracker, "/apps/hot.esp", 10);
+        record(tracker, "/apps/warm.ecma", 4);
+        tracker.stop();
+        assertTrue(file.isFile());
+
+        // only the two most frequently executed scripts are kept
+        ScriptUsageTracker restarted = new ScriptUsageTracker(file, 2);
+        assertEquals(Arrays.asList("/apps/hot.esp", "/apps/warm.ecma"), restarted.load());
+
+        // counts are halved on each restart so new usage takes over
+        record(restarted, "/apps/cold.ecma", 6);
+        assertEquals(Arrays.asList("/apps/cold.ecma", "/apps/hot.esp"), restarted.getHotScripts());
+    }
+
+    @Test
+    void testNothingWrittenWithoutExecutions() {
+        File file = new File(directory, "hotscripts.txt");
+        new ScriptUsageTracker(file, 10).stop();
+        assertFalse(file.exists());
+    }
+
+    private static void record(ScriptUsageTracker tracker, String scriptName, int times) {
+        for (int i = 0; i < times; i++) {
+            tracker.record(scriptName);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.Compilable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.scripting.api.ScriptNameAware;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+class ScriptWarmUpTest {
+
+    private final List<String> compiled = Collections.synchronizedList(new ArrayList<String>());
+
+    private ScriptEngineFactory engineFactory;
+
+    private ResourceResolverFactory resourceResolverFactory;
+
+    private ResourceResolver resolver;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ScriptEngine engine = mock(ScriptEngine.class, withSettings().extraInterfaces(Compilable.class));
+        when(((Compilable) engine).compile(any(Reader.class))).thenAnswer(invocation -> {
+            String name = ((ScriptNameAware) invocation.getArgument(0)).getScriptName();
+            if (name.contains("broken")) {
+                throw new ScriptException("broken");
+            }
+            compiled.add(name);
+            return null;
+        });
+
+        engineFactory = mock(ScriptEngineFactory.class);
+        when(engineFactory.getScriptEngine()).thenReturn(engine);
+        when(engineFactory.getExtensions()).thenReturn(Arrays.asList("ecma", "esp"));
+
+        Resource apps = resource(
+                "/apps",
+                resource(
+                        "/apps/a",
+                        resource("/apps/a/html.esp"),
+                        resource("/apps/a/script.ecma"),
+                        resource("/apps/a/readme.txt")),
+                resource("/apps/b", resource("/apps/b/excluded.ecma")),
+                resource("/apps/c", resource("/apps/c/broken.ecma")));
+
+        resolver = mock(ResourceResolver.class);
+        when(resolver.getSearchPath()).thenReturn(new String[] {"/apps/", "/libs/"});
+        when(resolver.getResource("/apps/")).thenReturn(apps);
+
+        resourceResolverFactory = mock(ResourceResolverFactory.class);
+        when(resourceResolverFactory.getServiceResourceResolver(null)).thenReturn(resolver);
+    }
+
+    @Test
+    void testWarmUp() throws Exception {
+        ScriptWarmUp warmUp = new ScriptWarmUp(
+                engineFactory,
+                resourceResolverFactory,
+                null,
+                new String[] {"/apps/b/.*"},
+                2,
+                Collections.<String>emptyList(),
+                true);
+        warmUp.start();
+        assertTrue(warmUp.awaitReady(10, TimeUnit.SECONDS));
+
+        assertEquals(ScriptWarmUp.STATE_DONE, warmUp.getState());
+        assertEquals(3, warmUp.getTotalScripts());
+        assertEquals(2, warmUp.getCompiledScripts());
+        assertEquals(1, warmUp.getFailedScripts());
+        assertEquals(0, warmUp.getEstimatedRemainingMillis());
+        Collections.sort(compiled);
+        assertEquals(Arrays.asList("/apps/a/html.esp", "/apps/a/script.ecma"), compiled);
+    }
+
+    @Test
+    void testIncludes() throws Exception {
+        ScriptWarmUp warmUp = new ScriptWarmUp(
+                engineFactory,
+                resourceResolverFactory,
+                new String[] {".*\\.esp"},
+                null,
+                1,
+                Collections.<String>emptyList(),
+                true);
+        warmUp.start();
+        assertTrue(warmUp.awaitReady(10, TimeUnit.SECONDS));
+
+        assertEquals(1, warmUp.getTotalScripts());
+        assertEquals(Collections.singletonList("/apps/a/html.esp"), compiled);
+    }
+
+    @Test
+    void testNothingToWarmUp() throws Exception {
+        ScriptWarmUp warmUp = new ScriptWarmUp(
+                engineFactory,
+                resourceResolverFactory,
+                new String[] {"/libs/.*"},
+                null,
+                1,
+                Collections.<String>emptyList(),
+                true);
+        warmUp.start();
+        assertTrue(warmUp.awaitReady(10, TimeUnit.SECONDS));
+        assertEquals(0, warmUp.getTotalScripts());
+    }
+
+    @Test
+    void testHotScriptsOnly() throws Exception {
+        Resource script = resource("/apps/a/script.ecma");
+        Resource html = resource("/apps/a/html.esp");
+        when(resolver.getResource("/apps/a/script.ecma")).thenReturn(script);
+        when(resolver.getResource("/apps/a/html.esp")).thenReturn(html);
+        ScriptWarmUp warmUp = new ScriptWarmUp(
+                engineFactory,
+                resourceResolverFactory,
+                null,
+                null,
+                1,
+                Arrays.asList("/apps/a/script.ecma", "/apps/gone.ecma", "/apps/a/html.esp"),
+                false);
+        warmUp.start();
+        assertTrue(warmUp.awaitReady(10, TimeUnit.SECONDS));
+
+        // compiled on a single thread in the order of the hot scripts
+        assertEquals(Arrays.asList("/apps/a/script.ecma", "/apps/a/html.esp"), compiled);
+        assertEquals(2, warmUp.getTotalScripts());
+    }
+
+    @Test
+    void testHotScriptsFirst() throws Exception {
+        Resource script = resource("/apps/a/script.ecma");
+        when(resolver.getResource("/apps/a/script.ecma")).thenReturn(script);
+        ScriptWarmUp warmUp = new ScriptWarmUp(
+                engineFactory,
+                resourceResolverFactory,
+                null,
+                null,
+                1,
+                Collections.singletonList("/apps/a/script.ecma"),
+                true);
+        warmUp.start();
+        assertTrue(warmUp.awaitReady(10, TimeUnit.SECONDS));
+
+        // hot scripts are not compiled again while scanning
+        assertEquals("/apps/a/script.ecma", compiled.get(0));
+        assertEquals(4, warmUp.getTotalScripts());
+        assertEquals(3, compiled.size());
+    }
+
+    @Test
+    void testScannerWaitsForCompilers() throws Exception {
+        final CountDownLatch compiling = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        ScriptEngine engine = mock(ScriptEngine.class, withSettings().extraInterfaces(Compilable.class));
+        when(((Compilable) engine).compile(any(Reader.class))).thenAnswer(invocation -> {
+            compiling.await();
+            return null;
+        });
+        when(engineFactory.getScriptEngine()).thenReturn(engine);
+
+        Resource[] scripts = new Resource[20];
+        for (int i = 0; i < scripts.length; i++) {
+            Resource script = resource("/apps/many/script" + i + ".ecma");
+            when(script.adaptTo(InputStream.class)).thenAnswer(invocation -> {
+                reads.incrementAndGet();
+                return new ByteArrayInputStream(new byte[0]);
+            });
+            scripts[i] = script;
+        }
+        Resource many = resource("/apps/many", scripts);
+        when(resolver.getResource("/apps/")).thenReturn(many);
+
+        ScriptWarmUp warmUp = new ScriptWarmUp(
+                engineFactory, resourceResolverFactory, null, null, 1, Collections.<String>emptyList(), true);
+        warmUp.start();
+        assertFalse(warmUp.awaitReady(200, TimeUnit.MILLISECONDS));
+
+        // only a few scripts are read ahead of the blocked compiler
+        assertEquals(3, reads.get());
+
+        compiling.countDown();
+        assertTrue(warmUp.awaitReady(10, TimeUnit.SECONDS));
+        assertEquals(20, reads.get());
+        assertEquals(20, warmUp.getCompiledScripts());
+    }
+
+    @Test
+    void testStop() {
+        ScriptWarmUp warmUp = new ScriptWarmUp(
+                engineFactory, resourceResolverFactory, null, null, 1, Collections.<String>emptyList(), true);
+        warmUp.stop();
+        assertTrue(warmUp.isReady());
+        assertEquals(ScriptWarmUp.STATE_STOPPED, warmUp.getState());
+    }
+
+    private static Resource resource(String path, Resource... children) {
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(path);
+        when(resource.listChildren())
+                .thenAnswer(invocation -> Arrays.asList(children).iterator());
+        if (children.length == 0) {
+            when(resource.adaptTo(InputStream.class))
+                    .thenAnswer(invocation -> new ByteArrayInputStream(path.getBytes(StandardCharsets.UTF_8)));
+        }
+        return resource;
+    }
+}
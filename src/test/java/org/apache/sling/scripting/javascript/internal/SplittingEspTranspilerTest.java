@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.sling.scripting.javascript.io.EspTranspiler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Scriptable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SplittingEspTranspilerTest {
+
+    private Context cx;
+
+    @BeforeEach
+    void setUp() {
+        cx = Context.enter();
+        cx.setLanguageVersion(RhinoJavaScriptEngineFactory.RHINO_LANGUAGE_VERSION);
+        cx.setOptimizationLevel(9);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Context.exit();
+    }
+
+    @Test
+    void testLargeTemplateIsCompiled() throws IOException {
+        StringBuilder template = new StringBuilder("<% var total = 0; %>\n");
+        for (int i = 0; i < 3000; i++) {
+            template.append("<li class=\"item\">${ total }</li><% total += ")
+                    .append(i)
+                    .append("; %>\n");
+        }
+        template.append("<% function sum() { return total; } %>${ sum() }\n");
+
+        String script = new EspTranspiler().transpile(new StringReader(template.toString()));
+        assertThrows(EvaluatorException.class, () -> run(script));
+
+        String split = new SplittingEspTranspiler(16384).transpile(new StringReader(template.toString()));
+        assertTrue(split.startsWith("var total;"));
+        assertTrue(split.contains("(function(){"));
+        assertEquals(lines(script), lines(split));
+
+        cx.setOptimizationLevel(-1);
+        String expected = run(script);
+        cx.setOptimizationLevel(9);
+        assertEquals(expected, run(split));
+    }
+
+    @Test
+    void testSplitScript() {
+        String script = "out.write(typeof x); var x = 1, y;\n"
+                + "function f() { var z = 2; return x + z; }\n"
+                + "for (var i = 0; i < 2; i++) out.write(i);\n"
+                + "out.write(f()); out.write(this === (function() { return this; })());";
+        String split = SplittingEspTranspiler.split(script, 10);
+
+        assertEquals("var x,y,i;", split.substring(0, 10));
+        assertEquals(lines(script), lines(split));
+        assertEquals(run(script), run(split));
+        assertEquals("undefined01" + "3true", run(split));
+    }
+
+    @Test
+    void testNotSplit() {
+        assertUnchanged("out.write(1);");
+        assertUnchanged("let a = 1; out.write(a);");
+        assertUnchanged("const a = 1; out.write(a);");
+        assertUnchanged("var [a, b] = [1, 2]; out.write(a);");
+        assertUnchanged("if (true) { function f() { return 1; } } out.write(f());");
+        assertUnchanged("eval('var a = 1'); out.write(a);");
+        assertUnchanged("'use strict'; out.write(1); out.write(2);");
+        assertUnchanged("out.write(1); out.write(2); out.write(");
+    }
+
+    private static void assertUnchanged(String script) {
+        assertEquals(script, SplittingEspTranspiler.split(script, 1));
+    }
+
+    private String run(String script) {
+        Scriptable scope = cx.initStandardObjects();
+        cx.evaluateString(
+                scope,
+                "var buf = []; var response = { writer: { write: function(s) { buf.push(s); } } };"
+                        + "var out = response.writer;",
+                "init",
+                1,
+                null);
+        cx.evaluateString(scope, script, "test", 1, null);
+        return String.valueOf(cx.evaluateString(scope, "buf.join('')", "result", 1, null));
+    }
+
+    private static int lines(String script) {
+        return script.split("\n", -1).length;
+    }
+}
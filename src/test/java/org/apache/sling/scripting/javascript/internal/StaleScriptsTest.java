@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.internal;
+
+import javax.script.CompiledScript;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+
+class StaleScriptsTest {
+
+    @Test
+    void testOnlyChangedScriptsAreStale() {
+        StaleScripts staleScripts = new StaleScripts(60000, Runnable::run);
+        CompiledScript compiled = mock(CompiledScript.class);
+        staleScripts.compiled("/apps/a.ecma", compiled);
+        assertNull(staleScripts.getStale("/apps/a.ecma"));
+
+        staleScripts.changed("/apps/a.ecma");
+        staleScripts.changed("/apps/unknown.ecma");
+        assertSame(compiled, staleScripts.getStale("/apps/a.ecma"));
+        assertNull(staleScripts.getStale("/apps/unknown.ecma"));
+        assertEquals(1, staleScripts.getStaleCount());
+
+        staleScripts.removed("/apps/a.ecma");
+        assertNull(staleScripts.getStale("/apps/a.ecma"));
+    }
+
+    @Test
+    void testMaxStaleness() throws Exception {
+        StaleScripts staleScripts = new StaleScripts(0, Runnable::run);
+        staleScripts.compiled("/apps/a.ecma", mock(CompiledScript.class));
+        staleScripts.changed("/apps/a.ecma");
+        Thread.sleep(10);
+        assertNull(staleScripts.getStale("/apps/a.ecma"));
+    }
+}
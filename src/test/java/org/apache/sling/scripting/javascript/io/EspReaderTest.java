@@ -314,10 +314,14 @@ class EspReaderTest {
                 buf.append((char) c);
             }
 
-            return buf.toString();
         } finally {
             r.close();
         }
+
+        // the transpiler must generate exactly the same script
+        final String result = buf.toString();
+        assertEquals(result, new EspTranspiler().transpile(new StringReader(text)), "EspTranspiler result");
+        return result;
     }
 
     /** Replace \n with . in strings to make it easier to compare visually for testing */
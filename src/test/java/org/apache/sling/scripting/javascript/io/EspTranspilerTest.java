@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The <code>EspTranspilerTest</code> covers the behaviour of the
+ * <code>EspTranspiler</code> beyond the templates of the
+ * <code>EspReaderTest</code>, which are checked against the
+ * <code>EspReader</code> there.
+ */
+class EspTranspilerTest {
+
+    @Test
+    void testTranspilingReader() throws IOException {
+        Reader reader = new EspTranspiler().transpilingReader(new StringReader("<%var x = 0;%>"));
+        try {
+            assertEquals('v', reader.read());
+            char[] buf = new char[20];
+            int rd = reader.read(buf, 2, 3);
+            assertEquals("ar ", new String(buf, 2, rd));
+            rd = reader.read(buf, 0, buf.length);
+            assertEquals("x = 0;", new String(buf, 0, rd));
+            assertEquals(-1, reader.read(buf, 0, buf.length));
+        } finally {
+            reader.close();
+        }
+        assertThrows(IOException.class, reader::read);
+    }
+
+    @Test
+    void testOutInit() throws IOException {
+        EspTranspiler transpiler = new EspTranspiler();
+        transpiler.setOutInitStatement("out=getOut();");
+        assertEquals("out=getOut();out.write(\"test\");", transpiler.transpile(new StringReader("test")));
+
+        // the transpiler may be reused
+        assertEquals("out=getOut();out.write( 1 );", transpiler.transpile(new StringReader("<%= 1 %>")));
+    }
+
+    @Test
+    void testTemplateLargerThanBlock() throws IOException {
+        StringBuilder template = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            template.append("<p class=\"line\">${ line").append(i).append(" }</p><% if (x) { %>\r\n");
+            template.append("<%-- comment --%>'text' // not a comment <% /* comment %> */ } %>\n");
+        }
+
+        assertEquals(
+                read(new EspReader(new StringReader(template.toString()))),
+                new EspTranspiler().transpile(new StringReader(template.toString())));
+    }
+
+    @Test
+    void testEndOfTemplate() throws IOException {
+        // unlike the EspReader, no lookahead beyond the end is written
+        assertEquals("out=response.writer;out.write(\"a$\");", transpile("a$"));
+        assertEquals("out=response.writer;out.write(\"a<\");", transpile("a<"));
+        assertEquals("out=response.writer;out.write(\"x\\r\");\n", transpile("x\r"));
+        assertEquals("x%", transpile("<%x%"));
+        assertEquals("x/", transpile("<%x/"));
+        assertEquals("", transpile("<%--x-"));
+    }
+
+    @Test
+    void testCoalesceText() throws IOException {
+        EspTranspiler transpiler = new EspTranspiler();
+        transpiler.setCoalesceText(true);
+
+        assertEquals(
+                "out=response.writer;out.write(\"<p>\\n\"\n+\"\\r\\n\"\n+\"\\\"x\\\"</p>\");",
+                transpiler.transpile(new StringReader("<p>\n\r\n\"x\"</p>")));
+
+        // expressions and code end the write, JSP comments do not
+        assertEquals(
+                "out=response.writer;out.write(\"a\\n\"\n+\"b \");out.write( x );out.write(\"\\n\"\n"
+                        + "\n+\"c\\n\"\n); y out.write(\"\\n\"\n);",
+                transpiler.transpile(new StringReader("a\nb <%= x %>\n<%-- \n --%>c\n<% y %>\n")));
+    }
+
+    @Test
+    void testCoalesceTextSplitsLargeBlocks() throws IOException {
+        StringBuilder template = new StringBuilder();
+        for (int i = 0; i < 3 * EspTranspiler.MAX_COALESCED_LINES; i++) {
+            template.append("line ").append(i).append('\n');
+        }
+        EspTranspiler transpiler = new EspTranspiler();
+        transpiler.setCoalesceText(true);
+        String script = transpiler.transpile(new StringReader(template.toString()));
+
+        // the line numbers are kept
+        assertEquals(3 * EspTranspiler.MAX_COALESCED_LINES, script.split("\n", -1).length - 1);
+        assertEquals(3, script.split("out.write\\(", -1).length - 1);
+
+        template.setLength(0);
+        for (int i = 0; i < 10; i++) {
+            char[] line = new char[EspTranspiler.MAX_COALESCED_LENGTH / 4];
+            Arrays.fill(line, 'x');
+            template.append(line).append('\n');
+        }
+        script = transpiler.transpile(new StringReader(template.toString()));
+        assertEquals(3, script.split("out.write\\(", -1).length - 1);
+    }
+
+    private static String transpile(String template) throws IOException {
+        return new EspTranspiler().transpile(new StringReader(template));
+    }
+
+    private static String read(Reader reader) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (int c; (c = reader.read()) >= 0; ) {
+            buf.append((char) c);
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.scripting.javascript.wrapper;
+
+import javax.script.ScriptException;
+
+import org.apache.sling.scripting.javascript.internal.ScriptEngineHelper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ScriptablePrintWriterTest {
+
+    private final ScriptEngineHelper script = new ScriptEngineHelper();
+
+    @Test
+    void testWrite() throws ScriptException {
+        assertEquals("text", script.evalToString("out.write('text')"));
+        assertEquals("1true", script.evalToString("out.write(1); out.write(true)"));
+        assertEquals("a1null", script.evalToString("out.write('a', 1, null)"));
+        assertEquals("ab", script.evalToString("var b = 'b'; out.write('a' + b)"));
+        assertEquals("", script.evalToString("out.write()"));
+    }
+
+    @Test
+    void testPrint() throws ScriptException {
+        assertEquals("text", script.evalToString("out.print('text')"));
+        assertEquals("a\n", script.evalToString("out.println('a')").replace(System.lineSeparator(), "\n"));
+    }
+}